@@ -0,0 +1,65 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The images (in src/test/resources/benchmark) and citation shared by the
+ * benchmarks.
+ */
+class BenchmarkFixtures {
+
+    /**
+     * A citation as built by the servlet for an item with a Virgo record and
+     * the fallback rights statement, before it is wrapped.
+     */
+    static final String CITATION = "\"Letter from Thomas Jefferson to James Madison, Monticello, January 30, 1787, concerning the late disturbances in Massachusetts, the new federal constitution, and the navigation of the Mississippi,\" Papers of James Madison, MSS 2988, Albert and Shirley Small Special Collections Library, University of Virginia Library, Charlottesville, VA.\n"
+            + "https://search.lib.virginia.edu/catalog/u1234567\n\n"
+            + "University of Virginia Library - search.lib.virginia.edu\n"
+            + "Under 17USC, Section 107, this single copy was produced for the purposes of private study, scholarship, or research.\n"
+            + "Copyright and other legal restrictions may apply.  Commercial use without permission is prohibited.";
+
+    /**
+     * The citation as it is drawn on the image.
+     */
+    static final String LABEL = ConvertServlet.wrapLongLines(CITATION, 125, ',', ' ');
+
+    /**
+     * Copies the named fixture image to a temporary file, which is deleted on
+     * exit.
+     */
+    static File extract(String image) throws IOException {
+        final File file = File.createTempFile("benchmark-" + image + "-", ".jpg");
+        file.deleteOnExit();
+        final InputStream in = BenchmarkFixtures.class.getClassLoader().getResourceAsStream("benchmark/" + image + ".jpg");
+        if (in == null) {
+            throw new IOException("No fixture image named " + image);
+        }
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return file;
+    }
+
+    /**
+     * A temporary file for output, which is deleted on exit.
+     */
+    static File createOutputFile() throws IOException {
+        final File file = File.createTempFile("benchmark-out-", ".jpg");
+        file.deleteOnExit();
+        return file;
+    }
+
+}
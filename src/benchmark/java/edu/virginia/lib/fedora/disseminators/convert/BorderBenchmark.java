@@ -0,0 +1,72 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A complete render of the border and citation, as streamed by the servlet,
+ * for wide, upright and tall, narrow (rotated label) images.  The
+ * "imagemagick" renderer needs ImageMagick installed; pass
+ * "-p renderer=java2d" to skip it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BorderBenchmark {
+
+    @Param({ "landscape", "portrait", "tall-narrow" })
+    public String image;
+
+    @Param({ "java2d", "imagemagick" })
+    public String renderer;
+
+    private byte[] input;
+
+    private BorderRenderer borderRenderer;
+
+    @Setup
+    public void setUp() throws IOException {
+        final File file = BenchmarkFixtures.extract(image);
+        input = FileUtils.readFileToByteArray(file);
+        if (renderer.equals("java2d")) {
+            borderRenderer = new Java2DBorderRenderer();
+        } else {
+            borderRenderer = new ImageMagickProcess();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (borderRenderer instanceof ImageMagickProcess) {
+            ((ImageMagickProcess) borderRenderer).getProcessRunner().shutdown();
+        }
+    }
+
+    @Benchmark
+    public int addBorder() throws IOException, InterruptedException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 2);
+        borderRenderer.addBorder("", new ByteArrayInputStream(input), out, BenchmarkFixtures.LABEL, OutputEncoding.DEFAULT);
+        return out.size();
+    }
+
+}
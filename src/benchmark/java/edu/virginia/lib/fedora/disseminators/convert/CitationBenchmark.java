@@ -0,0 +1,44 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wrapping of the citation, which is done once for every request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CitationBenchmark {
+
+    private String citation = BenchmarkFixtures.CITATION;
+
+    /**
+     * A citation with a very long line and no commas, so that every break
+     * falls back to the secondary breakpoint.
+     */
+    private String unbrokenCitation = BenchmarkFixtures.CITATION.replace(',', ' ') + " " + BenchmarkFixtures.CITATION.replace(',', ' ').replace('\n', ' ');
+
+    @Benchmark
+    public String wrapLongLines() {
+        return ConvertServlet.wrapLongLines(citation, 125, ',', ' ');
+    }
+
+    @Benchmark
+    public String wrapLongLinesWithoutCommas() {
+        return ConvertServlet.wrapLongLines(unbrokenCitation, 125, ',', ' ');
+    }
+
+}
@@ -0,0 +1,70 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-image work outside the border itself: reading the dimensions of
+ * the downloaded image and adding the citation to the Exif metadata of the
+ * result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JpegBenchmark {
+
+    @Param({ "landscape", "portrait", "tall-narrow" })
+    public String image;
+
+    private File input;
+
+    private File output;
+
+    private ConvertServlet servlet;
+
+    private ImageMagickProcess imageMagick;
+
+    @Setup
+    public void setUp() throws IOException {
+        input = BenchmarkFixtures.extract(image);
+        output = BenchmarkFixtures.createOutputFile();
+        servlet = new ConvertServlet();
+        imageMagick = new ImageMagickProcess();
+    }
+
+    @Benchmark
+    public void addUserComment() throws IOException {
+        servlet.addUserComment(input, output, BenchmarkFixtures.LABEL);
+    }
+
+    @Benchmark
+    public JpegDimensions readDimensions() throws IOException {
+        return JpegDimensions.read(input);
+    }
+
+    /**
+     * Includes the fallback to "identify" should the header not be
+     * readable.
+     */
+    @Benchmark
+    public JpegDimensions imageMagickDimensions() throws IOException, InterruptedException {
+        return imageMagick.getImageDimensions("", input);
+    }
+
+}
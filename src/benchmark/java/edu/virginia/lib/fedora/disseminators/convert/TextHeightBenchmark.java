@@ -0,0 +1,71 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measuring the height of the citation: by ImageMagick, with and without the
+ * text height cache, and by Java2D.  The ImageMagick benchmarks fork
+ * "convert" (the cached one only the first time), so they fail where it
+ * isn't installed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TextHeightBenchmark {
+
+    private static final String FONT = "Times-New-Roman";
+
+    private static final int POINT_SIZE = 20;
+
+    private ImageMagickProcess cached;
+
+    private ImageMagickProcess uncached;
+
+    private Java2DBorderRenderer java2d;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        cached = new ImageMagickProcess();
+        uncached = new ImageMagickProcess();
+        uncached.setTextHeightCacheSize(0);
+        java2d = new Java2DBorderRenderer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cached.getProcessRunner().shutdown();
+        uncached.getProcessRunner().shutdown();
+    }
+
+    @Benchmark
+    public int imageMagickCached() throws IOException, InterruptedException {
+        return cached.getTextHeightForTextWithFontAtPointSize("", BenchmarkFixtures.LABEL, FONT, POINT_SIZE);
+    }
+
+    @Benchmark
+    public int imageMagickUncached() throws IOException, InterruptedException {
+        return uncached.getTextHeightForTextWithFontAtPointSize("", BenchmarkFixtures.LABEL, FONT, POINT_SIZE);
+    }
+
+    @Benchmark
+    public int java2d() {
+        return java2d.getTextHeightForTextAtPointSize("", BenchmarkFixtures.LABEL, POINT_SIZE);
+    }
+
+}
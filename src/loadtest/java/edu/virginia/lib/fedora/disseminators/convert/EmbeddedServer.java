@@ -0,0 +1,26 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Runs the servlet, mapped as in web.xml, in an embedded Jetty on the given
+ * port.  The servlet is configured as usual, through the environment.
+ */
+public class EmbeddedServer {
+
+    public static void main(String[] args) throws Exception {
+        final Server server = new Server(Integer.parseInt(args[0]));
+        final ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        final ServletHolder holder = new ServletHolder(new ConvertServlet());
+        holder.setAsyncSupported(true);
+        holder.setInitOrder(1);
+        context.addServlet(holder, "/*");
+        server.setHandler(context);
+        server.start();
+        server.join();
+    }
+
+}
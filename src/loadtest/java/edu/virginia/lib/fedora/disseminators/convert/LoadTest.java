@@ -0,0 +1,281 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Load-tests /api/pid/ end to end: starts the stub services, runs the
+ * servlet in an embedded Jetty in a separate JVM (so that it can be
+ * configured through its environment) and drives it with a fixed number of
+ * concurrent clients, each requesting random pages one after another.
+ *
+ * Arguments are name=value pairs:
+ *
+ *   concurrency     concurrent clients (default 16)
+ *   duration        seconds measured (default 30)
+ *   warmup          seconds run before measuring (default 10)
+ *   items, pages    the number of items and of pages in each (default 50, 20)
+ *   tracksysLatency, solrLatency, citationLatency, iiifLatency
+ *                   stub latencies in milliseconds (default 20, 10, 50, 200)
+ *   errorRate       the fraction of stub responses that are 500s (default 0)
+ *   policies        the policy_a of successive items, "none" for a record
+ *                   without one (default public,none)
+ *   tallEvery       serve every nth page as a tall, narrow image (default 10)
+ *   size            the size parameter sent with every request (by default
+ *                   none, for the default size)
+ *   serverLog       where the servlet's output goes (default
+ *                   loadtest-server.log)
+ *   env.NAME        sets NAME in the servlet's environment, for example
+ *                   env.BORDER_RENDERER=imagemagick (the default is java2d)
+ */
+public class LoadTest {
+
+    private static final long SERVER_START_TIMEOUT_MILLIS = 120 * 1000;
+
+    private final Map<String, String> options = new LinkedHashMap<String, String>();
+
+    public static void main(String[] args) throws Exception {
+        final LoadTest test = new LoadTest();
+        for (String arg : args) {
+            if (arg.indexOf('=') <= 0) {
+                throw new IllegalArgumentException("Expected name=value, not \"" + arg + "\"");
+            }
+            test.options.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        test.run();
+        System.exit(0);
+    }
+
+    private int getInt(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private void run() throws Exception {
+        final StubServices stubs = new StubServices();
+        stubs.setTracksysLatency(getInt("tracksysLatency", 20));
+        stubs.setSolrLatency(getInt("solrLatency", 10));
+        stubs.setCitationLatency(getInt("citationLatency", 50));
+        stubs.setIiifLatency(getInt("iiifLatency", 200));
+        stubs.setErrorRate(options.containsKey("errorRate") ? Double.parseDouble(options.get("errorRate")) : 0);
+        if (options.containsKey("policies")) {
+            stubs.setPolicies(options.get("policies").split(","));
+        }
+        stubs.setTallEvery(getInt("tallEvery", 10));
+        stubs.start();
+
+        final int port = getFreePort();
+        final Process server = startServer(stubs.getBaseUrl(), port);
+        try {
+            awaitServer(server, port);
+
+            final String query = options.containsKey("size") ? "?size=" + URLEncoder.encode(options.get("size"), "UTF-8") : "";
+            final List<String> pids = new ArrayList<String>();
+            for (int i = 0; i < getInt("items", 50); i ++) {
+                for (int n = 1; n <= getInt("pages", 20); n ++) {
+                    pids.add("page-" + i + "-" + n + query);
+                }
+            }
+            final String baseUrl = "http://127.0.0.1:" + port + "/api/pid/";
+            final int concurrency = getInt("concurrency", 16);
+
+            System.out.println("Warming up for " + getInt("warmup", 10) + "s with " + concurrency + " clients...");
+            drive(baseUrl, pids, concurrency, getInt("warmup", 10));
+            System.out.println("Measuring for " + getInt("duration", 30) + "s with " + concurrency + " clients...");
+            final Results results = drive(baseUrl, pids, concurrency, getInt("duration", 30));
+            results.report(System.out);
+            System.out.println("Stub requests: " + stubs.getCounts());
+        } finally {
+            server.destroy();
+            server.waitFor();
+            stubs.stop();
+        }
+    }
+
+    private Process startServer(String stubUrl, int port) throws IOException {
+        final ProcessBuilder pb = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), EmbeddedServer.class.getName(), String.valueOf(port));
+        final Map<String, String> env = pb.environment();
+        env.put("IIIF_BASE_URL", stubUrl + "iiif/");
+        env.put("SOLR_CATALOG_URL", stubUrl + "solr/catalog");
+        env.put("SOLR_IMAGES_URL", stubUrl + "solr/images");
+        env.put("TRACKSYS_BASE_URL", stubUrl + "tracksys/");
+        env.put("CITATIONS_BASE_URL", stubUrl + "citations");
+        env.put("VIRGO_BASE_URL", "https://search.lib.virginia.edu/items/");
+        env.put("CATALOG_POOL_BASE_URL", "https://pool.lib.virginia.edu/catalog/");
+        env.put("IMAGES_POOL_BASE_URL", "https://pool.lib.virginia.edu/images/");
+        env.put("BORDER_RENDERER", "java2d");
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith("env.")) {
+                env.put(option.getKey().substring(4), option.getValue());
+            }
+        }
+        final File log = new File(options.containsKey("serverLog") ? options.get("serverLog") : "loadtest-server.log").getAbsoluteFile();
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(log);
+        System.out.println("Starting the servlet on port " + port + " (output in " + log + ")...");
+        return pb.start();
+    }
+
+    private static int getFreePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void awaitServer(Process server, int port) throws Exception {
+        final long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                server.exitValue();
+                throw new IllegalStateException("The server exited during startup.");
+            } catch (IllegalThreadStateException ex) {
+                // still running
+            }
+            try {
+                final HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/?about").openConnection();
+                if (conn.getResponseCode() == 200) {
+                    IOUtils.toByteArray(conn.getInputStream());
+                    return;
+                }
+            } catch (IOException ex) {
+                // not listening yet
+            }
+            Thread.sleep(250);
+        }
+        throw new IllegalStateException("The server didn't start within " + SERVER_START_TIMEOUT_MILLIS / 1000 + "s.");
+    }
+
+    private static Results drive(final String baseUrl, final List<String> pids, int concurrency, int seconds) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long end = start + seconds * 1000000000L;
+        final Client[] clients = new Client[concurrency];
+        final Thread[] threads = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i ++) {
+            clients[i] = new Client(baseUrl, pids, end, i);
+            threads[i] = new Thread(clients[i], "client-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new Results(clients, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Requests random pages, one after another, until the end time, recording
+     * the status and latency (including reading the whole body) of each.
+     */
+    private static class Client implements Runnable {
+
+        private final String baseUrl;
+        private final List<String> pids;
+        private final long end;
+        private final Random random;
+
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long bytes = 0;
+        private final Map<String, Integer> statuses = new TreeMap<String, Integer>();
+
+        Client(String baseUrl, List<String> pids, long end, int seed) {
+            this.baseUrl = baseUrl;
+            this.pids = pids;
+            this.end = end;
+            this.random = new Random(seed);
+        }
+
+        public void run() {
+            while (System.nanoTime() < end) {
+                final String pid = pids.get(random.nextInt(pids.size()));
+                final long start = System.nanoTime();
+                String status;
+                try {
+                    final HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + pid).openConnection();
+                    status = String.valueOf(conn.getResponseCode());
+                    final InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+                    if (in != null) {
+                        try {
+                            bytes += IOUtils.toByteArray(in).length;
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } catch (IOException ex) {
+                    status = ex.getClass().getSimpleName();
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count ++] = System.nanoTime() - start;
+                final Integer n = statuses.get(status);
+                statuses.put(status, n == null ? 1 : n + 1);
+            }
+        }
+    }
+
+    private static class Results {
+
+        private final long[] latencies;
+        private final long bytes;
+        private final Map<String, Integer> statuses = new TreeMap<String, Integer>();
+        private final double seconds;
+
+        Results(Client[] clients, double seconds) {
+            int total = 0;
+            long bytes = 0;
+            for (Client client : clients) {
+                total += client.count;
+                bytes += client.bytes;
+                for (Map.Entry<String, Integer> e : client.statuses.entrySet()) {
+                    final Integer n = statuses.get(e.getKey());
+                    statuses.put(e.getKey(), (n == null ? 0 : n) + e.getValue());
+                }
+            }
+            latencies = new long[total];
+            int i = 0;
+            for (Client client : clients) {
+                System.arraycopy(client.latencies, 0, latencies, i, client.count);
+                i += client.count;
+            }
+            Arrays.sort(latencies);
+            this.bytes = bytes;
+            this.seconds = seconds;
+        }
+
+        private double percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(p / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+
+        void report(PrintStream out) {
+            out.println();
+            out.println(String.format("Requests    : %d in %.1fs", latencies.length, seconds));
+            out.println(String.format("Throughput  : %.1f requests/s, %.1f MB/s", latencies.length / seconds, bytes / seconds / 1024 / 1024));
+            out.println("Statuses    : " + statuses);
+            out.println(String.format("Latency (ms): p50 %.1f  p95 %.1f  p99 %.1f  max %.1f", percentile(50), percentile(95), percentile(99), percentile(100)));
+            out.println();
+        }
+    }
+
+}
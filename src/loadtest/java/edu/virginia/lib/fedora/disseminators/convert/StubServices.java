@@ -0,0 +1,321 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-ins for Tracksys, the two Solr cores, the citations service and
+ * IIIF, each with a configurable latency and a configurable rate of injected
+ * 500 responses.
+ *
+ * Page pids are "page-{item}-{n}", and belong to the item "meta-{item}" (an
+ * "xml_metadata" item, whose solr id is its pid).  The images core has a
+ * record for every item, whose policy_a is taken in turn from the policies
+ * list, where "none" means a record without policy_a.  The catalog core has no
+ * records.  Pages whose number is a multiple of tallEvery are served as a tall,
+ * narrow image, the rest alternately as landscape and portrait.  Those images
+ * stand for the default pct:50 size; other sizes are scaled from them.
+ */
+public class StubServices {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("stub"));
+
+    private final Random random = new Random();
+
+    private int tracksysLatency = 20;
+    private int solrLatency = 10;
+    private int citationLatency = 50;
+    private int iiifLatency = 200;
+    private double errorRate = 0;
+    private String[] policies = { "public", "none" };
+    private int tallEvery = 10;
+
+    private final Map<String, byte[]> images = new ConcurrentHashMap<String, byte[]>();
+
+    private final Map<String, byte[]> scaledImages = new ConcurrentHashMap<String, byte[]>();
+
+    private final Map<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+    public StubServices() throws IOException {
+        for (String image : new String[] { "landscape", "portrait", "tall-narrow" }) {
+            final InputStream in = getClass().getClassLoader().getResourceAsStream("benchmark/" + image + ".jpg");
+            try {
+                images.put(image, IOUtils.toByteArray(in));
+            } finally {
+                in.close();
+            }
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/tracksys/", new StubHandler("tracksys") {
+            Response respond(String path, String query) {
+                return tracksys(path);
+            }
+        });
+        server.createContext("/solr/", new StubHandler("solr") {
+            Response respond(String path, String query) {
+                return solr(path, query);
+            }
+        });
+        server.createContext("/citations", new StubHandler("citations") {
+            Response respond(String path, String query) {
+                return new Response(200, "text/plain", "Author, An. \"A title of the item.\" University of Virginia Library, 1900.");
+            }
+        });
+        server.createContext("/iiif/", new StubHandler("iiif") {
+            Response respond(String path, String query) {
+                return iiif(path);
+            }
+        });
+    }
+
+    public void setTracksysLatency(int millis) {
+        tracksysLatency = millis;
+    }
+
+    public void setSolrLatency(int millis) {
+        solrLatency = millis;
+    }
+
+    public void setCitationLatency(int millis) {
+        citationLatency = millis;
+    }
+
+    public void setIiifLatency(int millis) {
+        iiifLatency = millis;
+    }
+
+    /**
+     * The fraction (0 to 1) of requests to answer with a 500.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setPolicies(String[] policies) {
+        this.policies = policies;
+    }
+
+    public void setTallEvery(int tallEvery) {
+        this.tallEvery = tallEvery;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * The number of requests answered by each service (and of injected
+     * errors).
+     */
+    public Map<String, Long> getCounts() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+
+    private void count(String name) {
+        AtomicLong count = counts.get(name);
+        if (count == null) {
+            counts.putIfAbsent(name, new AtomicLong());
+            count = counts.get(name);
+        }
+        count.incrementAndGet();
+    }
+
+    private Response tracksys(String path) {
+        final String[] parts = path.split("/");
+        if (parts.length != 4) {
+            return notFound();
+        }
+        final String pid = parts[3];
+        if (parts[2].equals("pid")) {
+            if (pid.startsWith("meta-")) {
+                return json("{\"pid\":\"" + pid + "\",\"type\":\"xml_metadata\"}");
+            } else if (pid.startsWith("page-") && pid.lastIndexOf('-') > 5) {
+                final String item = pid.substring(5, pid.lastIndexOf('-'));
+                return json("{\"pid\":\"" + pid + "\",\"type\":\"master_file\",\"parent_metadata_pid\":\"meta-" + item + "\"}");
+            }
+        } else if (parts[2].equals("metadata") && pid.startsWith("meta-")) {
+            return json("{\"pid\":\"" + pid + "\",\"title\":\"A title of the item.\",\"callNumber\":\"MSS " + pid.substring(5) + "\",\"rightsStatement\":\"\"}");
+        }
+        return notFound();
+    }
+
+    private Response solr(String path, String query) {
+        final String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><response><lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">1</int></lst>";
+        String policy = null;
+        if (path.startsWith("/solr/images/") && query != null) {
+            final int start = query.indexOf("meta-");
+            if (start >= 0) {
+                int end = start + 5;
+                while (end < query.length() && Character.isDigit(query.charAt(end))) {
+                    end ++;
+                }
+                if (end > start + 5) {
+                    policy = policies[(int) (Long.parseLong(query.substring(start + 5, end)) % policies.length)];
+                }
+            }
+        }
+        if (policy == null) {
+            return new Response(200, "application/xml", header + "<result name=\"response\" numFound=\"0\" start=\"0\"></result></response>");
+        }
+        return new Response(200, "application/xml", header + "<result name=\"response\" numFound=\"1\" start=\"0\"><doc><str name=\"id\">x</str>"
+                + (policy.equals("none") ? "" : "<arr name=\"policy_a\"><str>" + policy + "</str></arr>") + "</doc></result></response>");
+    }
+
+    private Response iiif(String path) {
+        final String[] parts = path.split("/");
+        if (parts.length < 3 || !parts[2].matches("page-\\d+-\\d+")) {
+            return notFound();
+        }
+        if (path.endsWith("/info.json")) {
+            return json("{\"width\":1600,\"height\":1100}");
+        }
+        final int page = Integer.parseInt(parts[2].substring(parts[2].lastIndexOf('-') + 1));
+        final String image = tallEvery > 0 && page % tallEvery == 0 ? "tall-narrow" : page % 2 == 0 ? "landscape" : "portrait";
+        final String size = parts.length > 4 ? parts[4] : "pct:50";
+        if (size.equals("pct:50")) {
+            return new Response(200, "image/jpeg", images.get(image));
+        }
+        byte[] scaled = scaledImages.get(image + " " + size);
+        if (scaled == null) {
+            try {
+                scaled = scale(images.get(image), size);
+            } catch (Exception ex) {
+                return new Response(400, "text/plain", "Invalid size: " + size);
+            }
+            scaledImages.put(image + " " + size, scaled);
+        }
+        return new Response(200, "image/jpeg", scaled);
+    }
+
+    /**
+     * Scales an image served for pct:50 to the given IIIF size ("pct:n" or
+     * "!w,h").
+     */
+    private static byte[] scale(byte[] jpeg, String size) throws IOException {
+        final BufferedImage source = ImageIO.read(new ByteArrayInputStream(jpeg));
+        final double factor;
+        if (size.startsWith("pct:")) {
+            factor = Double.parseDouble(size.substring(4)) / 50;
+        } else {
+            final String[] box = size.substring(1).split(",");
+            final double fullWidth = source.getWidth() * 2;
+            final double fullHeight = source.getHeight() * 2;
+            factor = Math.min(Integer.parseInt(box[0]) / fullWidth, Integer.parseInt(box[1]) / fullHeight) * 2;
+        }
+        final BufferedImage scaled = new BufferedImage(Math.max(1, (int) Math.round(source.getWidth() * factor)), Math.max(1, (int) Math.round(source.getHeight() * factor)), BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        g.dispose();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(scaled, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private static Response json(String body) {
+        return new Response(200, "application/json", body);
+    }
+
+    private static Response notFound() {
+        return new Response(404, "text/plain", "");
+    }
+
+    private static class Response {
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+
+        Response(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        Response(int status, String contentType, String body) {
+            this(status, contentType, body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private abstract class StubHandler implements HttpHandler {
+
+        private final String name;
+
+        StubHandler(String name) {
+            this.name = name;
+        }
+
+        abstract Response respond(String path, String query);
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                IOUtils.toByteArray(exchange.getRequestBody());
+                count(name);
+                final int latency = name.equals("iiif") ? iiifLatency : name.equals("solr") ? solrLatency : name.equals("citations") ? citationLatency : tracksysLatency;
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+                if (errorRate > 0 && random.nextDouble() < errorRate) {
+                    count(name + "-errors");
+                    send(exchange, new Response(500, "text/plain", ""));
+                } else {
+                    send(exchange, respond(exchange.getRequestURI().getPath(), exchange.getRequestURI().getQuery()));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void send(HttpExchange exchange, Response response) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", response.contentType);
+            final boolean head = exchange.getRequestMethod().equals("HEAD");
+            exchange.sendResponseHeaders(response.status, head || response.body.length == 0 ? -1 : response.body.length);
+            if (!head && response.body.length > 0) {
+                final OutputStream out = exchange.getResponseBody();
+                out.write(response.body);
+                out.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The dimensions of the border added around an image, as originally worked
+ * out for the ImageMagick "convert" invocation.  The point size is 2% of the
+ * longest side of the image, the text box is tall enough to hold the label
+ * plus a point size of padding above and below, and images that are much
+ * taller than they are wide have their label placed along the right side
+ * (reading bottom to top) rather than along the bottom.
+ */
+public class BorderGeometry {
+
+    /**
+     * Determines the pixel height of (possibly multi-line) text rendered
+     * at a given point size.
+     */
+    public interface TextHeightMeasurer {
+        int getTextHeight(String pfx, String text, int pointSize) throws IOException, InterruptedException;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(BorderGeometry.class);
+
+    private final int width;
+    private final int height;
+    private final boolean rotated;
+    private final int pointSize;
+    private final int textBoxHeight;
+
+    private BorderGeometry(int width, int height, boolean rotated, int pointSize, int textBoxHeight) {
+        this.width = width;
+        this.height = height;
+        this.rotated = rotated;
+        this.pointSize = pointSize;
+        this.textBoxHeight = textBoxHeight;
+    }
+
+    public static BorderGeometry compute(String pfx, int width, int height, String label, TextHeightMeasurer measurer) throws IOException, InterruptedException {
+        logger.debug(pfx + "width: " + width);
+        logger.debug(pfx + "height: " + height);
+
+        int pointSize = (int) ((float) (width>height ? width : height) * 0.02f);
+        logger.debug(pfx + "point size: " + pointSize);
+        int textBoxHeight = measurer.getTextHeight(pfx, label, pointSize) + (pointSize * 2);
+        logger.debug(pfx + "text box height: " + textBoxHeight);
+
+        final boolean rotated = (width * 1.5) <= height;
+        if (!rotated && height > width) {
+            pointSize = Math.round((float) pointSize / ((float) height / (float) width));
+            logger.debug(pfx + "point size: " + pointSize);
+            textBoxHeight = measurer.getTextHeight(pfx, label, pointSize) + (pointSize * 2);
+            logger.debug(pfx + "text box height: " + textBoxHeight);
+        }
+
+        return new BorderGeometry(width, height, rotated, pointSize, textBoxHeight);
+    }
+
+    /**
+     * The width of the source image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * The height of the source image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * True if the label runs along the right side of the image rather than
+     * along the bottom.
+     */
+    public boolean isRotated() {
+        return rotated;
+    }
+
+    public int getPointSize() {
+        return pointSize;
+    }
+
+    public int getTextBoxHeight() {
+        return textBoxHeight;
+    }
+
+    /**
+     * The width of the bordered image.  The border is one point size wide
+     * on every side except the one holding the label, which is the full
+     * text box height.
+     */
+    public int getOutputWidth() {
+        return rotated ? width + pointSize + textBoxHeight : width + (pointSize * 2);
+    }
+
+    /**
+     * The height of the bordered image.
+     */
+    public int getOutputHeight() {
+        return rotated ? height + (pointSize * 2) : height + pointSize + textBoxHeight;
+    }
+
+}
@@ -0,0 +1,27 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Something capable of adding a light gray border to a JPEG image with the
+ * provided label annotated along its bottom (or side, for tall images),
+ * writing the result with the given {@link OutputEncoding}.  Implementations
+ * are expected to lay out the border using the dimensions computed by
+ * {@link BorderGeometry} so that their output is comparable, and to fail
+ * with an IOException if asked for a format they can't write.
+ */
+public interface BorderRenderer {
+
+    void addBorder(String pfx, File inputJpg, File output, String label, OutputEncoding encoding) throws IOException, InterruptedException;
+
+    /**
+     * Adds the border to the JPEG read from the given stream, writing the
+     * result to the other stream, so that neither need be spooled to disk.
+     * Neither stream is closed.
+     */
+    void addBorder(String pfx, InputStream inputJpg, OutputStream output, String label, OutputEncoding encoding) throws IOException, InterruptedException;
+
+}
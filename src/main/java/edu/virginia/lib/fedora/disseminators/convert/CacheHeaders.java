@@ -0,0 +1,84 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The caching headers sent with a wrapped image (and with the 304 that
+ * answers a request for one the client already has): a strong ETag made
+ * from its output cache key, which covers the page, the citation and rights
+ * text and the render settings; the time a cached copy was rendered (a new
+ * render has none until it is served from the cache); and a Cache-Control
+ * that depends on the item's access policy.
+ */
+public class CacheHeaders {
+
+    private final String etag;
+
+    private final long lastModified;
+
+    private final String cacheControl;
+
+    /**
+     * @param lastModified the time the cached image was rendered, or 0 if
+     *        it isn't cached
+     * @param cacheControl the Cache-Control header, or null (or empty) for
+     *        none
+     */
+    public CacheHeaders(String cacheKey, long lastModified, String cacheControl) {
+        this.etag = "\"" + cacheKey + "\"";
+        this.lastModified = lastModified;
+        this.cacheControl = cacheControl;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void apply(HttpServletResponse resp) {
+        resp.setHeader("ETag", etag);
+        if (lastModified > 0) {
+            resp.setDateHeader("Last-Modified", lastModified);
+        }
+        if (cacheControl != null && !cacheControl.equals("")) {
+            resp.setHeader("Cache-Control", cacheControl);
+        }
+    }
+
+    /**
+     * Returns true if the request's conditional headers show that the client
+     * already has this image.
+     */
+    public boolean isNotModified(HttpServletRequest req) {
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException ex) {
+            ifModifiedSince = -1;
+        }
+        return isNotModified(req.getHeader("If-None-Match"), ifModifiedSince);
+    }
+
+    /**
+     * As with HTTP, If-None-Match (compared weakly, so that a "W/" prefix
+     * added by a compressing proxy doesn't matter) takes precedence, and
+     * If-Modified-Since is only considered without it.
+     */
+    boolean isNotModified(String ifNoneMatch, long ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // the header has a resolution of one second
+        return ifModifiedSince >= 0 && lastModified > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+}
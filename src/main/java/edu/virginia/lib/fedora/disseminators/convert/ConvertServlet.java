@@ -1,42 +1,65 @@
 package edu.virginia.lib.fedora.disseminators.convert;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Random;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.imaging.ImageReadException;
-import org.apache.commons.imaging.ImageWriteException;
-import org.apache.commons.imaging.Imaging;
-import org.apache.commons.imaging.common.ImageMetadata;
-import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
-import org.apache.commons.imaging.formats.jpeg.exif.ExifRewriter;
-import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
-import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
-import org.apache.commons.imaging.formats.tiff.write.TiffOutputDirectory;
-import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.util.EntityUtils;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -45,6 +68,7 @@ import org.apache.solr.client.solrj.impl.XMLResponseParser;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -60,12 +84,55 @@ public class ConvertServlet extends HttpServlet {
 
     private static final String VERSION = "2.3.0";
 
+    /**
+     * The number of finished pre-render jobs whose progress is kept.
+     */
+    private static final int MAX_FINISHED_PRERENDER_JOBS = 50;
+
     final Logger logger = LoggerFactory.getLogger(ConvertServlet.class);
 
-    private ImageMagickProcess convert;
+    private BorderRenderer renderer;
+    private OutputCache outputCache;
+    private final Metrics metrics = new Metrics();
+    private Metrics.Family<Metrics.Histogram> requestDurations;
+    private Metrics.Family<Metrics.Counter> requestOutcomes;
+    private Metrics.Family<Metrics.Histogram> stageDurations;
+    private Metrics.Family<Metrics.Histogram> upstreamDurations;
+    private Metrics.Counter imageBytesIn;
+    private Metrics.Counter responseBytesOut;
+    private InstrumentedConnectionManager connectionManager;
     private CloseableHttpClient client;
+    private IdleConnectionTimeoutThread solrIdleConnectionEvictor;
     private SolrServer solrCatalog;
     private SolrServer solrImages;
+    private ExecutorService upstreamExecutor;
+    private ExecutorService requestExecutor;
+    private int requestTimeout;
+    private ExecutorService batchExecutor;
+    private int batchParallelism;
+    private int batchMaxPages;
+    private int batchTimeout;
+    private String adminToken;
+    private ExecutorService prerenderExecutor;
+    private final LinkedHashMap<String, PrerenderJob> prerenderJobs = new LinkedHashMap<String, PrerenderJob>();
+
+    private RenderLimiter renderLimiter;
+    private int renderRetryAfter;
+    private SingleFlight singleFlight;
+
+    private int imageMaxPercent;
+    private int imageMaxDimension;
+    private ImageSize defaultSize;
+    private OutputEncoding defaultEncoding;
+    private boolean webpOutput;
+
+    private String publicCacheControl;
+    private String restrictedCacheControl;
+
+    private TtlCache<String, TracksysPid> tracksysPidCache;
+    private TtlCache<String, TracksysMetadata> tracksysMetadataCache;
+    private TtlCache<String, String> citationCache;
+    private TtlCache<String, SolrRecord> solrCache;
 
     private String iiifBaseUrl;
     private String solrCatalogUrl;
@@ -75,6 +142,9 @@ public class ConvertServlet extends HttpServlet {
     private String citationsBaseUrl;
     private String catalogPoolBaseUrl;
     private String imagesPoolBaseUrl;
+    private String borderRendererName;
+    private String outputCacheDir;
+    private boolean streamResponses;
 
     private String buildVersion;
 
@@ -90,20 +160,12 @@ public class ConvertServlet extends HttpServlet {
             citationsBaseUrl = System.getenv("CITATIONS_BASE_URL");
             catalogPoolBaseUrl = System.getenv("CATALOG_POOL_BASE_URL");
             imagesPoolBaseUrl = System.getenv("IMAGES_POOL_BASE_URL");
+            borderRendererName = System.getenv("BORDER_RENDERER");
+            outputCacheDir = System.getenv("OUTPUT_CACHE_DIR");
+            streamResponses = "true".equals(System.getenv("STREAM_RESPONSES"));
 
-            int connTimeout;
-            try {
-                connTimeout = Integer.parseInt(System.getenv("HTTP_CONN_TIMEOUT"));
-            } catch (NumberFormatException e) {
-                connTimeout = 5;
-            }
-
-            int readTimeout;
-            try {
-                readTimeout = Integer.parseInt(System.getenv("HTTP_READ_TIMEOUT"));
-            } catch (NumberFormatException e) {
-                readTimeout = 30;
-            }
+            int connTimeout = getEnvInt("HTTP_CONN_TIMEOUT", 5);
+            int readTimeout = getEnvInt("HTTP_READ_TIMEOUT", 30);
 
             RequestConfig config = RequestConfig.custom()
                 .setConnectTimeout(connTimeout * 1000)
@@ -111,15 +173,198 @@ public class ConvertServlet extends HttpServlet {
                 .setSocketTimeout(readTimeout * 1000)
                 .build();
 
-            client = HttpClientBuilder.create().setDefaultRequestConfig(config).setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE).build();
+            // keep-alive connections are pooled, with a per-route (in practice
+            // per-host) limit so that slow IIIF downloads can't starve the
+            // much quicker metadata lookups of connections
+            final int poolMaxTotal = getEnvInt("HTTP_POOL_MAX_TOTAL", 200);
+            final int poolMaxPerRoute = getEnvInt("HTTP_POOL_MAX_PER_ROUTE", 64);
+            final int poolIdleTimeout = getEnvInt("HTTP_POOL_IDLE_TIMEOUT", 30);
+            connectionManager = new InstrumentedConnectionManager();
+            connectionManager.setMaxTotal(poolMaxTotal);
+            connectionManager.setDefaultMaxPerRoute(poolMaxPerRoute);
+            connectionManager.setValidateAfterInactivity(getEnvInt("HTTP_POOL_VALIDATE_AFTER", 2) * 1000);
+
+            client = HttpClientBuilder.create()
+                .setDefaultRequestConfig(config)
+                .setConnectionManager(connectionManager)
+                .evictExpiredConnections()
+                .evictIdleConnections(poolIdleTimeout, TimeUnit.SECONDS)
+                .build();
+
+            requestDurations = metrics.histograms("rightswrapper_request_duration_seconds", "Time taken to answer image requests, by endpoint.", "endpoint");
+            requestOutcomes = metrics.counters("rightswrapper_requests_total", "Image requests answered, by endpoint and status.", "endpoint", "status");
+            stageDurations = metrics.histograms("rightswrapper_stage_duration_seconds", "Time spent in each stage of serving an image.", "stage");
+            upstreamDurations = metrics.histograms("rightswrapper_upstream_duration_seconds", "Time taken by requests to upstream services.", "upstream");
+            imageBytesIn = metrics.counters("rightswrapper_image_bytes_in_total", "Bytes of images downloaded from IIIF.").get();
+            responseBytesOut = metrics.counters("rightswrapper_response_bytes_out_total", "Bytes sent in answer to image requests.").get();
+            metrics.sampledCounter("rightswrapper_http_pool_leases_total", "Connections leased from the HTTP pool.", new Metrics.Gauge() {
+                public double get() {
+                    return connectionManager.getLeases();
+                }
+            });
+            metrics.sampledCounter("rightswrapper_http_pool_lease_timeouts_total", "Requests that gave up waiting for an HTTP pool connection.", new Metrics.Gauge() {
+                public double get() {
+                    return connectionManager.getLeaseTimeouts();
+                }
+            });
+            metrics.gauge("rightswrapper_http_pool_pending", "Requests waiting for an HTTP pool connection.", new Metrics.Gauge() {
+                public double get() {
+                    return connectionManager.getPending();
+                }
+            });
 
-            convert = new ImageMagickProcess();
+            if (borderRendererName == null || borderRendererName.equals("")) {
+                borderRendererName = "imagemagick";
+            }
+            if (borderRendererName.equals("imagemagick")) {
+                final ImageMagickProcess imageMagick = new ImageMagickProcess();
+                imageMagick.setTextHeightCacheSize(getEnvInt("TEXT_HEIGHT_CACHE_SIZE", ImageMagickProcess.DEFAULT_TEXT_HEIGHT_CACHE_SIZE));
+                imageMagick.setProcessRunner(new ProcessRunner(getEnvInt("PROCESS_IO_THREADS", ProcessRunner.DEFAULT_MAX_THREADS)));
+                imageMagick.setStageDurations(stageDurations);
+                metrics.gauge("rightswrapper_imagemagick_processes_active", "ImageMagick processes currently running.", new Metrics.Gauge() {
+                    public double get() {
+                        return imageMagick.getProcessRunner().getActiveProcesses();
+                    }
+                });
+                renderer = imageMagick;
+            } else if (borderRendererName.equals("java2d")) {
+                renderer = new Java2DBorderRenderer();
+            } else {
+                throw new ServletException("Unsupported BORDER_RENDERER \"" + borderRendererName + "\" (expected \"imagemagick\" or \"java2d\")");
+            }
 
-            solrCatalog = new CommonsHttpSolrServer(solrCatalogUrl);
-            ((CommonsHttpSolrServer) solrCatalog).setParser(new XMLResponseParser());
+            // how images are encoded unless a request says otherwise
+            final String sampling = System.getenv("OUTPUT_SAMPLING");
+            try {
+                defaultEncoding = new OutputEncoding(OutputEncoding.Format.JPEG, getEnvInt("OUTPUT_QUALITY", 0), "true".equals(System.getenv("OUTPUT_PROGRESSIVE")), sampling == null || sampling.equals("") ? null : sampling, "true".equals(System.getenv("OUTPUT_STRIP_METADATA")));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Unsupported output encoding: " + ex.getMessage());
+            }
+            webpOutput = "true".equals(System.getenv("OUTPUT_WEBP"));
+            if (webpOutput && !(renderer instanceof ImageMagickProcess)) {
+                throw new ServletException("OUTPUT_WEBP requires the \"imagemagick\" BORDER_RENDERER");
+            }
 
-            solrImages = new CommonsHttpSolrServer(solrImagesUrl);
-            ((CommonsHttpSolrServer) solrImages).setParser(new XMLResponseParser());
+            // how long clients (and, for public items, shared caches) may
+            // reuse a wrapped image
+            publicCacheControl = getEnvString("CACHE_CONTROL_PUBLIC", "public, max-age=86400");
+            restrictedCacheControl = getEnvString("CACHE_CONTROL_RESTRICTED", "private, max-age=86400");
+
+            // each render needs the whole image in memory (and, with
+            // ImageMagick, a process or two), so only so many run at once
+            final int renderMaxConcurrent = getEnvInt("RENDER_MAX_CONCURRENT", Runtime.getRuntime().availableProcessors());
+            renderLimiter = new RenderLimiter(renderMaxConcurrent, getEnvInt("RENDER_MAX_QUEUE", 50), getEnvInt("RENDER_MAX_QUEUE_WAIT", 10));
+            renderRetryAfter = getEnvInt("RENDER_RETRY_AFTER", 5);
+            metrics.gauge("rightswrapper_renders_in_progress", "Renders currently running.", new Metrics.Gauge() {
+                public double get() {
+                    return renderLimiter.getInUse();
+                }
+            });
+            metrics.gauge("rightswrapper_renders_queued", "Requests waiting for a render to finish.", new Metrics.Gauge() {
+                public double get() {
+                    return renderLimiter.getQueued();
+                }
+            });
+            metrics.sampledCounter("rightswrapper_render_queue_full_total", "Requests turned away because the render queue was full.", new Metrics.Gauge() {
+                public double get() {
+                    return renderLimiter.getQueueFullRejections();
+                }
+            });
+            metrics.sampledCounter("rightswrapper_render_queue_timeouts_total", "Requests turned away after waiting too long for a render slot.", new Metrics.Gauge() {
+                public double get() {
+                    return renderLimiter.getTimeoutRejections();
+                }
+            });
+
+            // pre-rendering jobs get their own small pool, sized so that they
+            // use no more than a share of the render capacity (and only what
+            // requests leave unused)
+            adminToken = System.getenv("ADMIN_TOKEN");
+            final int prerenderThreads = Math.max(1, renderMaxConcurrent * getEnvInt("PRERENDER_SHARE", 25) / 100);
+            ThreadPoolExecutor prerenderPool = new ThreadPoolExecutor(prerenderThreads, prerenderThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("prerender"));
+            prerenderPool.allowCoreThreadTimeOut(true);
+            prerenderExecutor = prerenderPool;
+
+            // concurrent requests for the same image share a single render
+            singleFlight = new SingleFlight(getEnvInt("SINGLE_FLIGHT_WAIT", 60), getEnvInt("SINGLE_FLIGHT_MAX_MB", SingleFlight.DEFAULT_MAX_SHARED_BYTES / (1024 * 1024)) * 1024 * 1024);
+
+            // when every upstream thread is busy, tasks run on the submitting
+            // thread instead of queueing; this degrades to the old serial
+            // behavior rather than letting tasks that wait on other tasks
+            // (solr lookups refreshed in the background) deadlock the pool
+            final int upstreamThreads = getEnvInt("UPSTREAM_THREADS", 64);
+            ThreadPoolExecutor upstreamPool = new ThreadPoolExecutor(upstreamThreads, upstreamThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory("upstream"), new ThreadPoolExecutor.CallerRunsPolicy());
+            upstreamPool.allowCoreThreadTimeOut(true);
+            upstreamExecutor = upstreamPool;
+
+            // image requests are handled asynchronously on a pool of their
+            // own, so waiting on upstream services and renders doesn't tie
+            // up the container's threads; requests beyond the pool size queue
+            // until a thread is free or they time out
+            final int requestThreads = getEnvInt("REQUEST_THREADS", 200);
+            ThreadPoolExecutor requestPool = new ThreadPoolExecutor(requestThreads, requestThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("request"));
+            requestPool.allowCoreThreadTimeOut(true);
+            requestExecutor = requestPool;
+            requestTimeout = getEnvInt("ASYNC_REQUEST_TIMEOUT", 120);
+
+            // the pages of batch requests are rendered on a pool of their
+            // own, a few at a time per batch; as with the upstream pool, a
+            // task runs on the batch's own thread when the pool is busy
+            final int batchThreads = getEnvInt("BATCH_THREADS", 16);
+            ThreadPoolExecutor batchPool = new ThreadPoolExecutor(batchThreads, batchThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory("batch"), new ThreadPoolExecutor.CallerRunsPolicy());
+            batchPool.allowCoreThreadTimeOut(true);
+            batchExecutor = batchPool;
+            batchParallelism = getEnvInt("BATCH_PARALLELISM", 4);
+            batchMaxPages = getEnvInt("BATCH_MAX_PAGES", 1000);
+            batchTimeout = getEnvInt("BATCH_TIMEOUT", 3600);
+
+            imageMaxPercent = getEnvInt("IMAGE_MAX_PERCENT", ImageSize.DEFAULT_MAX_PERCENT);
+            imageMaxDimension = getEnvInt("IMAGE_MAX_DIMENSION", ImageSize.DEFAULT_MAX_DIMENSION);
+            defaultSize = ImageSize.parse(null, imageMaxPercent, imageMaxDimension);
+
+            final int metadataCacheSize = getEnvInt("METADATA_CACHE_SIZE", 10000);
+            final int tracksysTtl = getEnvInt("TRACKSYS_CACHE_TTL", 300);
+            final int citationTtl = getEnvInt("CITATION_CACHE_TTL", 3600);
+            final int negativeTtl = getEnvInt("NEGATIVE_CACHE_TTL", 60);
+            final int staleTtl = getEnvInt("STALE_CACHE_TTL", 3600);
+            tracksysPidCache = new TtlCache<String, TracksysPid>("tracksys pid", metadataCacheSize, tracksysTtl, negativeTtl, staleTtl, new TtlCache.NegativePredicate<TracksysPid>() {
+                public boolean isNegative(TracksysPid value) {
+                    return value.pid.equals("");
+                }
+            }, upstreamExecutor);
+            tracksysMetadataCache = new TtlCache<String, TracksysMetadata>("tracksys metadata", metadataCacheSize, tracksysTtl, negativeTtl, staleTtl, new TtlCache.NegativePredicate<TracksysMetadata>() {
+                public boolean isNegative(TracksysMetadata value) {
+                    return value.pid.equals("");
+                }
+            }, upstreamExecutor);
+            citationCache = new TtlCache<String, String>("citation", metadataCacheSize, citationTtl, negativeTtl, staleTtl, new TtlCache.NegativePredicate<String>() {
+                public boolean isNegative(String value) {
+                    return value.equals("");
+                }
+            }, upstreamExecutor);
+
+            solrCache = new TtlCache<String, SolrRecord>("solr", metadataCacheSize, getEnvInt("SOLR_CACHE_TTL", 60), negativeTtl, staleTtl, new TtlCache.NegativePredicate<SolrRecord>() {
+                public boolean isNegative(SolrRecord value) {
+                    return value.doc == null;
+                }
+            }, upstreamExecutor);
+
+            if (outputCacheDir != null && !outputCacheDir.equals("")) {
+                outputCache = new OutputCache(new File(outputCacheDir), getEnvInt("OUTPUT_CACHE_MAX_MB", 1024) * 1024L * 1024L);
+            }
+
+            solrCatalog = createSolrServer(solrCatalogUrl, connTimeout, readTimeout, poolMaxPerRoute);
+            solrImages = createSolrServer(solrImagesUrl, connTimeout, readTimeout, poolMaxPerRoute);
+
+            // solrj has its own (commons-httpclient 3) connection pool, which
+            // has no idle eviction of its own
+            solrIdleConnectionEvictor = new IdleConnectionTimeoutThread();
+            solrIdleConnectionEvictor.setName("solr-idle-connection-evictor");
+            solrIdleConnectionEvictor.setConnectionTimeout(poolIdleTimeout * 1000L);
+            solrIdleConnectionEvictor.setTimeoutInterval(5000);
+            solrIdleConnectionEvictor.addConnectionManager(((CommonsHttpSolrServer) solrCatalog).getHttpClient().getHttpConnectionManager());
+            solrIdleConnectionEvictor.addConnectionManager(((CommonsHttpSolrServer) solrImages).getHttpClient().getHttpConnectionManager());
+            solrIdleConnectionEvictor.start();
 
             buildVersion = getBuildVersion();
 
@@ -134,12 +379,69 @@ public class ConvertServlet extends HttpServlet {
             logger.trace("[CONFIG] Citations Base URL    : " + citationsBaseUrl);
             logger.trace("[CONFIG] Catalog Pool Base URL : " + catalogPoolBaseUrl);
             logger.trace("[CONFIG] Images Pool Base URL  : " + imagesPoolBaseUrl);
+            logger.trace("[CONFIG] Border Renderer       : " + borderRendererName);
+            logger.trace("[CONFIG] Output Cache Dir      : " + (outputCache == null ? "(disabled)" : outputCacheDir));
+            logger.trace("[CONFIG] Stream Responses      : " + streamResponses);
+            logger.trace("[CONFIG] Output Encoding       : " + defaultEncoding + (webpOutput ? " (webp when accepted)" : ""));
+            logger.trace("[CONFIG] HTTP Pool             : max " + poolMaxTotal + ", " + poolMaxPerRoute + " per route");
         } catch (IOException ex) {
             logger.error("Unable to start ConvertServlet (version " + VERSION + ")", ex);
             throw new ServletException(ex);
         }
     }
 
+    /**
+     * Creates a solr client for the given core whose connection pool is
+     * limited in the same way as the pool used for the other services.
+     */
+    private static SolrServer createSolrServer(final String url, final int connTimeout, final int readTimeout, final int maxConnections) throws IOException {
+        CommonsHttpSolrServer solr = new CommonsHttpSolrServer(url);
+        solr.setParser(new XMLResponseParser());
+        solr.setConnectionTimeout(connTimeout * 1000);
+        solr.setConnectionManagerTimeout(connTimeout * 1000L);
+        solr.setSoTimeout(readTimeout * 1000);
+        solr.setDefaultMaxConnectionsPerHost(maxConnections);
+        solr.setMaxTotalConnections(maxConnections);
+        return solr;
+    }
+
+    public void destroy() {
+        requestExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+        prerenderExecutor.shutdownNow();
+        upstreamExecutor.shutdownNow();
+        if (renderer instanceof ImageMagickProcess) {
+            ((ImageMagickProcess) renderer).getProcessRunner().shutdown();
+        }
+        solrIdleConnectionEvictor.shutdown();
+        try {
+            client.close();
+        } catch (IOException ex) {
+            logger.warn("Unable to close HTTP client", ex);
+        }
+    }
+
+    /**
+     * Returns the integer value of the named environment variable, or the
+     * default value if it is unset or not a number.
+     */
+    private static int getEnvInt(final String name, final int defaultValue) {
+        try {
+            return Integer.parseInt(System.getenv(name));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of the named environment variable, or the default
+     * value if it is unset (but not if it is empty).
+     */
+    private static String getEnvString(final String name, final String defaultValue) {
+        final String value = System.getenv(name);
+        return value == null ? defaultValue : value;
+    }
+
     private String getBuildVersion() {
         String buildVersion = "unknown";
 
@@ -157,9 +459,19 @@ public class ConvertServlet extends HttpServlet {
         return buildVersion;
     }
 
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        final String endpoint = new File(req.getPathInfo()).getAbsolutePath();
+        if (endpoint.equals("/api/prerender")) {
+            prerenderHandler(req, resp, null);
+            return;
+        }
+        resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+    }
+
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         final String reqId = String.format("%1$08x", rand.nextInt());
         final String pfx = "[" + reqId + "] ";
+        resp.setHeader("X-Request-Id", reqId);
 
         if (req.getParameter("about") != null) {
             logger.info("about");
@@ -190,10 +502,29 @@ public class ConvertServlet extends HttpServlet {
             return;
         }
 
+        if (endpoint.equals("/metrics")) {
+            metricsHandler(req, resp);
+            return;
+        }
+
         if (endpoint.startsWith("/api/pid/")) {
             final String pagePid = f.getName();
-            pidHandler(req, resp, pagePid, pfx);
-            logger.debug(pfx + "Done!");
+            startPidRequest(req, resp, pagePid, pfx);
+            return;
+        }
+
+        if (endpoint.equals("/api/prerender") || endpoint.startsWith("/api/prerender/")) {
+            prerenderHandler(req, resp, endpoint.equals("/api/prerender") ? null : f.getName());
+            return;
+        }
+
+        if (endpoint.equals("/api/batch") || endpoint.startsWith("/api/batch/")) {
+            final String metadataPid = endpoint.equals("/api/batch") ? null : f.getName();
+            startAsyncRequest(new AsyncRequest(req, resp, "batch", "batch request" + (metadataPid == null ? "" : " for \"" + metadataPid + "\""), batchTimeout, pfx) {
+                void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+                    batchHandler(req, resp, metadataPid, pfx);
+                }
+            });
             return;
         }
 
@@ -213,17 +544,44 @@ public class ConvertServlet extends HttpServlet {
         IOUtils.write("Citations Base URL    : " + citationsBaseUrl + "\n", resp.getOutputStream());
         IOUtils.write("Catalog Pool Base URL : " + catalogPoolBaseUrl + "\n", resp.getOutputStream());
         IOUtils.write("Images Pool Base URL  : " + imagesPoolBaseUrl + "\n", resp.getOutputStream());
+        IOUtils.write("Border Renderer       : " + borderRendererName + "\n", resp.getOutputStream());
+        IOUtils.write("Stream Responses      : " + streamResponses + "\n", resp.getOutputStream());
+        IOUtils.write("Output Encoding       : " + defaultEncoding + (webpOutput ? " (webp when accepted)" : "") + "\n", resp.getOutputStream());
+        if (renderer instanceof ImageMagickProcess) {
+            IOUtils.write("Text height cache     : " + ((ImageMagickProcess) renderer).getTextHeightCache().getStats() + "\n", resp.getOutputStream());
+            IOUtils.write("ImageMagick processes : " + ((ImageMagickProcess) renderer).getProcessRunner().getStats() + "\n", resp.getOutputStream());
+        }
+        IOUtils.write("Tracksys pid cache    : " + tracksysPidCache.getStats() + "\n", resp.getOutputStream());
+        IOUtils.write("Tracksys meta cache   : " + tracksysMetadataCache.getStats() + "\n", resp.getOutputStream());
+        IOUtils.write("Citation cache        : " + citationCache.getStats() + "\n", resp.getOutputStream());
+        IOUtils.write("Solr cache            : " + solrCache.getStats() + "\n", resp.getOutputStream());
+        IOUtils.write("Render limiter        : " + renderLimiter.getStats() + "\n", resp.getOutputStream());
+        IOUtils.write("Shared renders        : " + singleFlight.getStats() + "\n", resp.getOutputStream());
+        IOUtils.write("HTTP pool             : " + connectionManager.getStats() + "\n", resp.getOutputStream());
+        IOUtils.write("Solr connections      : catalog=" + getSolrPoolSize(solrCatalog) + " images=" + getSolrPoolSize(solrImages) + "\n", resp.getOutputStream());
+        IOUtils.write("Output cache          : " + (outputCache == null ? "(disabled)" : outputCacheDir + " " + outputCache.getStats()) + "\n", resp.getOutputStream());
         resp.getOutputStream().close();
     }
 
+    private static int getSolrPoolSize(final SolrServer solr) {
+        return ((MultiThreadedHttpConnectionManager) ((CommonsHttpSolrServer) solr).getHttpClient().getHttpConnectionManager()).getConnectionsInPool();
+    }
+
     private void showUsage(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
         resp.setContentType("text/plain");
         IOUtils.write("Rights wrapper service version " + VERSION + "\n\n", resp.getOutputStream());
-        IOUtils.write("usage:  GET /api/pid/{pagePID}\n\n", resp.getOutputStream());
+        IOUtils.write("usage:  GET /api/pid/{pagePID}\n", resp.getOutputStream());
+        IOUtils.write("        GET /api/batch?pids={pagePID},{pagePID},...\n", resp.getOutputStream());
+        IOUtils.write("        GET /api/batch/{metadataPID}\n\n", resp.getOutputStream());
         IOUtils.write("optional parameters:\n", resp.getOutputStream());
         IOUtils.write(" * about -- shows configured service URLs\n", resp.getOutputStream());
         IOUtils.write(" * justMetadata -- returns just the image metadata\n", resp.getOutputStream());
+        IOUtils.write(" * size -- the size of the image: pct:{percent}, {maxWidthAndHeight} or\n", resp.getOutputStream());
+        IOUtils.write("           {maxWidth},{maxHeight} (default and largest pct:" + imageMaxPercent + ", largest box " + imageMaxDimension + ")\n", resp.getOutputStream());
+        IOUtils.write(" * quality -- the JPEG (or WebP) quality, from 1 to 100\n", resp.getOutputStream());
+        IOUtils.write(" * progressive -- true or false, whether the JPEG is progressive\n", resp.getOutputStream());
+        IOUtils.write(" * sampling -- the JPEG chroma subsampling: 4:4:4, 4:2:2 or 4:2:0\n", resp.getOutputStream());
         resp.getOutputStream().close();
     }
 
@@ -234,68 +592,1164 @@ public class ConvertServlet extends HttpServlet {
         resp.getOutputStream().close();
     }
 
+    private void metricsHandler(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8));
+        metrics.write(out);
+        out.close();
+    }
+
     private void healthcheckHandler(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         resp.setStatus(HttpServletResponse.SC_OK);
         resp.setContentType("application/json");
-        IOUtils.write("{}", resp.getOutputStream());
-        resp.getOutputStream().close();
-    }
-
-    private void ignoreHandler(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        IOUtils.write("{}", resp.getOutputStream());
+        resp.getOutputStream().close();
+    }
+
+    private void ignoreHandler(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        resp.getOutputStream().close();
+    }
+
+    /**
+     * Hands the request to the pid handler on a request thread, releasing
+     * the container thread at once.  A request that hasn't been answered
+     * within ASYNC_REQUEST_TIMEOUT is abandoned with a 500, as for any other
+     * failure upstream.
+     */
+    private void startPidRequest(final HttpServletRequest req, final HttpServletResponse resp, final String pagePid, final String pfx) {
+        startAsyncRequest(new AsyncRequest(req, resp, "pid", "request for \"" + pagePid + "\"", requestTimeout, pfx) {
+            void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+                pidHandler(req, resp, pagePid, pfx);
+            }
+        });
+    }
+
+    private void startAsyncRequest(final AsyncRequest request) {
+        request.async.addListener(request);
+        request.task = requestExecutor.submit(request);
+    }
+
+    /**
+     * A request in progress on a request thread, which completes the
+     * asynchronous request when the handler returns or, if that comes first,
+     * when it times out or the client goes away.  Its outcome is recorded in
+     * the metrics under the given endpoint name.
+     */
+    private abstract class AsyncRequest implements Runnable, AsyncListener {
+        private final AsyncContext async;
+        private final HttpServletRequest req;
+        private final NonBlockingResponse resp;
+        private final String endpoint;
+        private final String description;
+        private final int timeout;
+        private final String pfx;
+
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile Future<?> task;
+
+        private final long started = System.nanoTime();
+
+        AsyncRequest(HttpServletRequest req, HttpServletResponse resp, String endpoint, String description, int timeout, String pfx) {
+            this.async = req.startAsync();
+            this.async.setTimeout(timeout * 1000L);
+            this.req = req;
+            this.resp = new NonBlockingResponse(resp);
+            this.endpoint = endpoint;
+            this.description = description;
+            this.timeout = timeout;
+            this.pfx = pfx;
+        }
+
+        abstract void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException;
+
+        public void run() {
+            try {
+                handle(req, resp);
+                logger.debug(pfx + "Done!");
+            } catch (Exception ex) {
+                if (!resp.isAborted()) {
+                    logger.warn(pfx + "Denied " + description + ": " + ex.getMessage(), ex);
+                }
+                resp.abort(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                finish();
+            }
+        }
+
+        public void onTimeout(AsyncEvent event) {
+            if (!finished.get()) {
+                logger.warn(pfx + "Denied " + description + ": no response within " + timeout + " seconds");
+            }
+            abandon();
+        }
+
+        public void onError(AsyncEvent event) {
+            if (!finished.get()) {
+                logger.debug(pfx + "Abandoned " + description + ": " + event.getThrowable());
+            }
+            abandon();
+        }
+
+        public void onComplete(AsyncEvent event) {
+        }
+
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private void abandon() {
+            // the response is cut off first, so that the handler can't touch
+            // it once it has been handed back to the container
+            resp.abort(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            if (task != null) {
+                task.cancel(true);
+            }
+            finish();
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                requestOutcomes.get(endpoint, String.valueOf(resp.getStatus())).increment();
+                requestDurations.get(endpoint).observeSince(started);
+                responseBytesOut.add(resp.getBytesWritten());
+                async.complete();
+            }
+        }
+    }
+
+    private void pidHandler(HttpServletRequest req, HttpServletResponse resp, final String pagePid, final String pfx) throws ServletException, IOException {
+        long start = System.currentTimeMillis();
+
+        // the time spent in each stage, sent in a Server-Timing header just
+        // before the body (and logged in full once the response is done)
+        final ServerTiming timing = new ServerTiming();
+
+        String referer = req.getHeader("referer");
+        if (referer == null) {
+            referer = "";
+        } else {
+            referer = " (referer: " + referer + ")";
+        }
+
+        // will be checked if set, not for value
+        String download = req.getParameter("download");
+
+        final boolean justMetadata = req.getParameter("justMetadata") != null;
+
+        final ImageSize size;
+        final OutputEncoding requested;
+        try {
+            size = ImageSize.parse(req.getParameter("size"), imageMaxPercent, imageMaxDimension);
+            requested = defaultEncoding.withOverrides(req.getParameter("quality"), req.getParameter("progressive"), req.getParameter("sampling"));
+        } catch (IllegalArgumentException ex) {
+            logger.debug(pfx + "Denied request for \"" + pagePid + "\": " + ex.getMessage() + referer);
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (webpOutput) {
+            // the same url may be answered with either format
+            resp.setHeader("Vary", "Accept");
+        }
+        final OutputEncoding encoding = webpOutput && OutputEncoding.acceptsWebp(req.getHeader("Accept")) ? requested.withFormat(OutputEncoding.Format.WEBP) : requested;
+        // each size and encoding of a page is rendered (and shared) separately
+        final String variant = pagePid + " " + size + " " + encoding;
+
+        // start everything that depends only on the page pid at once: the
+        // Tracksys lookup and, since it is by far the slowest stage, a
+        // speculative download of the image itself (unless we won't need it).
+        // the status of that download doubles as the check that the page is
+        // in IIIF; when we aren't downloading, the much cheaper info.json is
+        // requested instead.  the results are still checked in the original
+        // order, so the response to any failure is the same as if they had
+        // run serially.  a conditional request is likely to be answered with
+        // a 304, so nothing is downloaded for one until that is ruled out.
+        final Future<TracksysPid> tsPidLookup = submitTracksysPidLookup(pagePid, pfx);
+        ImageDownload orig = null;
+        Future<Void> iiifQuery = null;
+        SingleFlight.Flight flight = null;
+        boolean claimed = false;
+        if (!justMetadata && req.getHeader("If-None-Match") == null && (outputCache == null || !outputCache.containsPage(pagePid)) && singleFlight.claimPage(variant)) {
+            // requests for this page that arrive while we download it will
+            // likely share our render, so shouldn't download it themselves
+            claimed = true;
+            orig = startImageDownload(pagePid, size, pfx);
+        } else {
+            iiifQuery = upstreamExecutor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    queryImageInfo(pagePid, pfx);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            // ensure the page pid is actually in IIIF before proceeding
+            final long iiifCheckStarted = System.nanoTime();
+            try {
+                if (orig != null) {
+                    orig.awaitFound();
+                } else {
+                    await(iiifQuery);
+                }
+            } catch (RuntimeException ex) {
+                String message = ex.getMessage();
+                if (message == null) {
+                    message = "";
+                }
+
+                logger.debug(pfx + "IIIF image query for pid " + pagePid + " failed: " + message + referer);
+
+                if (message.startsWith("400") || message.startsWith("404")) {
+                    resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                } else {
+                    resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+
+                return;
+            } catch (Exception ex) {
+                logger.debug(pfx + "IIIF image query for pid " + pagePid + " failed: " + ex + referer);
+                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                return;
+            } finally {
+                stageDurations.get("iiif_check").observeSince(iiifCheckStarted);
+                timing.add("iiif", iiifCheckStarted);
+            }
+
+            final PageInfo page;
+            final long metadataStarted = System.nanoTime();
+            try {
+                page = resolvePage(pagePid, tsPidLookup, timing, pfx);
+            } catch (PageException ex) {
+                resp.setStatus(ex.getStatus());
+                return;
+            } finally {
+                stageDurations.get("metadata").observeSince(metadataStarted);
+            }
+
+            if (page.solrDoc != null && !canAccessResource(page.solrDoc, req, pfx)) {
+                logger.debug(pfx + "Denied request for \"" + page.solrId + "\": unauthorized: " + referer);
+                resp.setHeader("Server-Timing", timing.toString());
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+
+            final String fullCitation = page.fullCitation;
+
+            // return result (either metadata or framed image)
+            if (justMetadata) {
+                resp.setContentType("text/plain");
+                resp.setStatus(HttpServletResponse.SC_OK);
+                resp.getOutputStream().write((fullCitation).getBytes("UTF-8"));
+                resp.getOutputStream().close();
+            } else {
+                // serve a previously rendered copy if there is one
+                final String cacheKey = getCacheKey(pagePid, size, encoding, fullCitation);
+                final File cached = outputCache == null ? null : outputCache.get(cacheKey);
+                final CacheHeaders cacheHeaders = new CacheHeaders(cacheKey, cached == null ? 0 : cached.lastModified(), getCacheControl(page.solrDoc));
+                if (cacheHeaders.isNotModified(req)) {
+                    resp.setHeader("Server-Timing", timing.toString());
+                    cacheHeaders.apply(resp);
+                    resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    long end = System.currentTimeMillis();
+                    logger.info(pfx + "Serviced request for \"" + pagePid + "\" (not modified) in " + (end - start) + " ms." + referer);
+                    return;
+                }
+                if (cached != null) {
+                    FileInputStream cachedIn = null;
+                    try {
+                        cachedIn = new FileInputStream(cached);
+                    } catch (FileNotFoundException ex) {
+                        logger.debug(pfx + "Cached image was evicted before it could be read");
+                    }
+                    if (cachedIn != null) {
+                        try {
+                            if (download != null) {
+                                resp.setHeader("Content-Disposition", "attachment; filename=" + page.tsMetaPid.pid + "." + encoding.getFormat().getExtension());
+                            }
+
+                            resp.setHeader("Server-Timing", timing.toString());
+                            cacheHeaders.apply(resp);
+                            resp.setContentType(encoding.getFormat().getContentType());
+                            resp.setStatus(HttpServletResponse.SC_OK);
+                            IOUtils.copy(cachedIn, resp.getOutputStream());
+                        } finally {
+                            cachedIn.close();
+                        }
+                        long end = System.currentTimeMillis();
+                        logger.info(pfx + "Serviced request for \"" + pagePid + "\" (" + cached.length() + " bytes, cached) in " + (end - start) + " ms." + referer);
+                        return;
+                    }
+                }
+
+                final String disposition = download == null ? null : "attachment; filename=" + page.tsMetaPid.pid + "." + encoding.getFormat().getExtension();
+
+                // if the same image is already being rendered for another
+                // request, pass on the outcome of that instead
+                flight = singleFlight.join(cacheKey, variant);
+                while (flight != null && !flight.isLeader()) {
+                    if (orig != null) {
+                        orig.discard();
+                        orig = null;
+                    }
+                    if (serveSharedImage(resp, flight, pagePid, disposition, encoding, cacheHeaders, timing, pfx, referer, start)) {
+                        return;
+                    }
+                    // if the render was abandoned, join again so that only
+                    // one of its followers takes it over
+                    flight = flight.isAbandoned() ? singleFlight.join(cacheKey, variant) : null;
+                }
+
+                boolean admitted = false;
+                try {
+                    if (streamResponses) {
+                        // a streamed download holds its connection (with the
+                        // body unread) until the render reads it, so it isn't
+                        // opened while the render waits its turn; one started
+                        // speculatively is dropped if it would have to wait
+                        if (orig != null) {
+                            try {
+                                admitted = renderLimiter.tryAcquire();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                            if (!admitted) {
+                                orig.discard();
+                                orig = null;
+                            }
+                        }
+                        if (!admitted) {
+                            if (!awaitRenderPermit(resp, pagePid, timing, pfx, referer)) {
+                                return;
+                            }
+                            admitted = true;
+                        }
+                    }
+
+                    if (orig == null) {
+                        // not started earlier because a cached (or shared) copy
+                        // seemed likely
+                        orig = startImageDownload(pagePid, size, pfx);
+                    }
+
+                    final long downloadStarted = System.nanoTime();
+                    try {
+                        orig.await();
+                    } catch (RuntimeException ex) {
+                        if (ex.getMessage() != null && ex.getMessage().startsWith("400")) {
+                            logger.debug(pfx + "Denied request for \"" + pagePid + "\": 404 unable to download image" + referer);
+                            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                            return;
+                        } else {
+                            logger.debug(pfx + "Denied request for \"" + pagePid + "\": " + ex.getMessage() + referer);
+                            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                            return;
+                        }
+                    } catch (Exception ex) {
+                        logger.warn(pfx + "Denied request for \"" + pagePid + "\": " + ex.getMessage() + referer, ex);
+                        resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        return;
+                    } finally {
+                        stageDurations.get("download").observeSince(downloadStarted);
+                        timing.add("download", downloadStarted);
+                    }
+
+                    if (!admitted) {
+                        if (!awaitRenderPermit(resp, pagePid, timing, pfx, referer)) {
+                            return;
+                        }
+                        admitted = true;
+                    }
+
+                    final OutputStream share = flight == null ? null : flight.getOutputStream();
+                    final boolean rendered;
+                    if (streamResponses) {
+                        rendered = streamWrappedImage(resp, orig, pagePid, cacheKey, fullCitation, disposition, encoding, cacheHeaders, share, timing, pfx, referer, start);
+                    } else {
+                        rendered = writeWrappedImage(resp, orig, pagePid, page.tsMetaPid.pid, cacheKey, fullCitation, disposition, encoding, cacheHeaders, share, timing, pfx, referer, start);
+                    }
+                    if (rendered && flight != null) {
+                        flight.succeed();
+                    }
+                } finally {
+                    if (admitted) {
+                        renderLimiter.release();
+                    }
+                }
+            }
+        } finally {
+            if (iiifQuery != null) {
+                iiifQuery.cancel(true);
+            }
+            tsPidLookup.cancel(true);
+            if (orig != null) {
+                // a no-op if the download was used, otherwise it is aborted
+                orig.discard();
+            }
+            if (claimed) {
+                singleFlight.releasePage(variant);
+            }
+            if (flight != null) {
+                // a no-op if the render succeeded, otherwise the followers
+                // get the same response
+                flight.fail(resp.getStatus());
+            }
+            if (!resp.isCommitted() && !timing.isEmpty()) {
+                resp.setHeader("Server-Timing", timing.toString());
+            }
+            logger.info(pfx + "Server-Timing for \"" + pagePid + "\": " + timing);
+        }
+    }
+
+    /**
+     * Limits the number of renders at once: waits for this request's turn,
+     * or if too many are already waiting (or it waits too long), answers it
+     * with a 503 asking it to retry later and returns false.
+     */
+    private boolean awaitRenderPermit(HttpServletResponse resp, final String pagePid, final ServerTiming timing, final String pfx, final String referer) {
+        boolean admitted;
+        final long queueStarted = System.nanoTime();
+        try {
+            admitted = renderLimiter.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        } finally {
+            stageDurations.get("render_queue").observeSince(queueStarted);
+            timing.add("queue", queueStarted);
+        }
+        if (!admitted) {
+            logger.info(pfx + "Deferred request for \"" + pagePid + "\": too many renders in progress (" + renderLimiter.getStats() + ")" + referer);
+            resp.setHeader("Retry-After", String.valueOf(renderRetryAfter));
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        return admitted;
+    }
+
+    /**
+     * Answers a request with the outcome of the same render for another
+     * request, returning false (having sent nothing) if that isn't available
+     * in time.
+     */
+    private boolean serveSharedImage(HttpServletResponse resp, SingleFlight.Flight flight, final String pagePid, final String disposition, final OutputEncoding encoding, final CacheHeaders cacheHeaders, final ServerTiming timing, final String pfx, final String referer, final long start) throws IOException {
+        logger.debug(pfx + "[Wait for render in progress]");
+        final long waitStarted = System.nanoTime();
+        try {
+            if (!flight.await()) {
+                if (flight.isAbandoned()) {
+                    logger.debug(pfx + "Render in progress for \"" + pagePid + "\" was abandoned, joining again");
+                } else {
+                    logger.debug(pfx + "Render in progress for \"" + pagePid + "\" can't be shared, rendering it again");
+                }
+                return false;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for render in progress");
+        } finally {
+            stageDurations.get("shared_wait").observeSince(waitStarted);
+            timing.add("shared", waitStarted);
+        }
+
+        if (flight.getStatus() != HttpServletResponse.SC_OK) {
+            logger.debug(pfx + "Denied request for \"" + pagePid + "\": " + flight.getStatus() + " from render in progress" + referer);
+            resp.setStatus(flight.getStatus());
+            return true;
+        }
+
+        if (disposition != null) {
+            resp.setHeader("Content-Disposition", disposition);
+        }
+        resp.setHeader("Server-Timing", timing.toString());
+        cacheHeaders.apply(resp);
+        resp.setContentType(encoding.getFormat().getContentType());
+        resp.setStatus(HttpServletResponse.SC_OK);
+        flight.writeImage(resp.getOutputStream());
+        long end = System.currentTimeMillis();
+        logger.info(pfx + "Serviced request for \"" + pagePid + "\" (" + flight.getImageSize() + " bytes, shared) in " + (end - start) + " ms." + referer);
+        return true;
+    }
+
+    /**
+     * Renders the downloaded image through temporary files and returns it,
+     * copying it to share (if not null) for other requests.  Returns false
+     * if the request was answered with an error instead.
+     */
+    private boolean writeWrappedImage(HttpServletResponse resp, ImageDownload orig, final String pagePid, final String tempPrefix, final String cacheKey, final String fullCitation, final String disposition, final OutputEncoding encoding, final CacheHeaders cacheHeaders, final OutputStream share, final ServerTiming timing, final String pfx, final String referer, final long start) throws IOException {
+        File framed = File.createTempFile(tempPrefix + "-wrapped-", "." + encoding.getFormat().getExtension());
+        File tagged = File.createTempFile(tempPrefix + "-wrapped-tagged-", "." + encoding.getFormat().getExtension());
+        try {
+            // add the frame
+            logger.debug(pfx + "[Add image frame]");
+            final long borderStarted = System.nanoTime();
+            renderer.addBorder(pfx, orig.getFile(), framed, fullCitation, encoding);
+            stageDurations.get("border").observeSince(borderStarted);
+            timing.add("render", borderStarted);
+
+            // add the exif
+            logger.debug(pfx + "[Add image exif]");
+            final long exifStarted = System.nanoTime();
+            addUserComment(framed, tagged, fullCitation, encoding.getFormat());
+            stageDurations.get("exif").observeSince(exifStarted);
+            timing.add("exif", exifStarted);
+
+            if (outputCache != null) {
+                try {
+                    outputCache.put(cacheKey, tagged);
+                } catch (IOException ex) {
+                    logger.warn(pfx + "Unable to cache wrapped image for \"" + pagePid + "\"", ex);
+                }
+            }
+            if (share != null) {
+                FileInputStream sharedIn = new FileInputStream(tagged);
+                try {
+                    IOUtils.copy(sharedIn, share);
+                } finally {
+                    sharedIn.close();
+                }
+            }
+
+            // return the content
+
+            if (disposition != null) {
+                resp.setHeader("Content-Disposition", disposition);
+            }
+
+            resp.setHeader("Server-Timing", timing.toString());
+            cacheHeaders.apply(resp);
+            resp.setContentType(encoding.getFormat().getContentType());
+            resp.setStatus(HttpServletResponse.SC_OK);
+            FileInputStream taggedIn = new FileInputStream(tagged);
+            try {
+                IOUtils.copy(taggedIn, resp.getOutputStream());
+            } finally {
+                taggedIn.close();
+            }
+            long size = orig.getFile().length();
+            long end = System.currentTimeMillis();
+            logger.info(pfx + "Serviced request for \"" + pagePid + "\" (" + size + " bytes) in " + (end - start) + " ms." + referer);
+            return true;
+        } catch (Exception ex) {
+            logger.warn(pfx + "Denied request for \"" + pagePid + "\": " + ex.getMessage() + referer, ex);
+            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return false;
+        } finally {
+            framed.delete();
+            tagged.delete();
+        }
+    }
+
+    /**
+     * Pipes the downloaded image through the renderer and the EXIF stage to
+     * the response (and the output cache) without any temporary files.  The
+     * response status isn't set until the first byte of the result is ready,
+     * so a failure before then is still reported as a 500.  The result is
+     * also copied to share (if not null) for other requests.  Returns false
+     * if the render failed.
+     */
+    private boolean streamWrappedImage(HttpServletResponse resp, ImageDownload orig, final String pagePid, final String cacheKey, final String fullCitation, final String disposition, final OutputEncoding encoding, final CacheHeaders cacheHeaders, final OutputStream share, final ServerTiming timing, final String pfx, final String referer, final long start) throws IOException {
+        // the render (which includes the exif) is still going on when the
+        // headers are sent, so its time is only logged
+        resp.setHeader("Server-Timing", timing.toString());
+        final DeferredResponseOutputStream out = new DeferredResponseOutputStream(resp, encoding.getFormat().getContentType(), disposition, cacheHeaders);
+        OutputCache.Writer cacheEntry = null;
+        if (outputCache != null) {
+            try {
+                cacheEntry = outputCache.begin(cacheKey);
+            } catch (IOException ex) {
+                logger.warn(pfx + "Unable to cache wrapped image for \"" + pagePid + "\"", ex);
+            }
+        }
+        OutputStream sink = out;
+        if (cacheEntry != null) {
+            sink = new TeeOutputStream(sink, cacheEntry.getOutputStream());
+        }
+        if (share != null) {
+            sink = new TeeOutputStream(sink, share);
+        }
+
+        try {
+            // add the frame and, as the result is written, the exif
+            logger.debug(pfx + "[Add image frame and exif]");
+            final UserCommentOutputStream tagged = UserCommentOutputStream.create(sink, fullCitation, encoding.getFormat());
+            final InputStream in = orig.getStream();
+            // with streaming, this includes the exif and the rest of the download
+            final long borderStarted = System.nanoTime();
+            renderer.addBorder(pfx, in, tagged, fullCitation, encoding);
+            tagged.finish();
+            stageDurations.get("border").observeSince(borderStarted);
+            timing.add("render", borderStarted);
+        } catch (Exception ex) {
+            if (cacheEntry != null) {
+                cacheEntry.abort();
+            }
+            if (out.isStarted()) {
+                logger.warn(pfx + "Failed request for \"" + pagePid + "\" after the response was started: " + ex.getMessage() + referer, ex);
+            } else {
+                logger.warn(pfx + "Denied request for \"" + pagePid + "\": " + ex.getMessage() + referer, ex);
+                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            return false;
+        }
+
+        if (cacheEntry != null) {
+            try {
+                cacheEntry.commit();
+            } catch (IOException ex) {
+                logger.warn(pfx + "Unable to cache wrapped image for \"" + pagePid + "\"", ex);
+            }
+        }
+        out.close();
+        long end = System.currentTimeMillis();
+        logger.info(pfx + "Serviced request for \"" + pagePid + "\" (" + out.getCount() + " bytes, streamed) in " + (end - start) + " ms." + referer);
+        return true;
+    }
+
+    /**
+     * Serves a ZIP of the wrapped images for a list of page pids (the "pids"
+     * parameter, separated by commas) or for every master file of the given
+     * metadata pid.  The item metadata is resolved once for all of its pages,
+     * and the pages are rendered a few at a time, each added to the archive
+     * as soon as it is ready.  A page that can't be served doesn't end the
+     * batch; it is listed with its status in the closing "manifest.txt".
+     */
+    private void batchHandler(HttpServletRequest req, HttpServletResponse resp, final String metadataPid, final String pfx) throws ServletException, IOException {
+        long start = System.currentTimeMillis();
+
+        // the item metadata, resolved once per metadata pid
+        final ConcurrentHashMap<String, CompletableFuture<PageInfo>> items = new ConcurrentHashMap<String, CompletableFuture<PageInfo>>();
+        final List<String> pagePids = new ArrayList<String>();
+        final ImageSize size;
+        final OutputEncoding encoding;
+        try {
+            size = ImageSize.parse(req.getParameter("size"), imageMaxPercent, imageMaxDimension);
+            // always JPEG, as the archive is kept rather than displayed
+            encoding = defaultEncoding.withOverrides(req.getParameter("quality"), req.getParameter("progressive"), req.getParameter("sampling"));
+        } catch (IllegalArgumentException ex) {
+            logger.debug(pfx + "Denied batch request: " + ex.getMessage());
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final String name;
+        if (metadataPid != null) {
+            final PageInfo item;
+            try {
+                item = resolvePage(metadataPid, submitTracksysPidLookup(metadataPid, pfx), pfx);
+                pagePids.addAll(getTracksysManifest(metadataPid, pfx));
+            } catch (PageException ex) {
+                resp.setStatus(ex.getStatus());
+                return;
+            } catch (Exception ex) {
+                logger.error(pfx + "Exception querying Tracksys manifest:", ex);
+                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                return;
+            }
+            if (pagePids.isEmpty()) {
+                logger.debug(pfx + "Denied batch request for \"" + metadataPid + "\": no master files");
+                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            if (item.solrDoc != null && !canAccessResource(item.solrDoc, req, pfx)) {
+                logger.debug(pfx + "Denied batch request for \"" + metadataPid + "\": unauthorized");
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            items.put(metadataPid, CompletableFuture.completedFuture(item));
+            name = item.tsMetaPid.pid;
+        } else {
+            final String pids = req.getParameter("pids");
+            if (pids != null) {
+                for (String pid : pids.split("[,\\s]+")) {
+                    if (!pid.equals("")) {
+                        pagePids.add(pid);
+                    }
+                }
+            }
+            if (pagePids.isEmpty()) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            name = "batch";
+        }
+        if (pagePids.size() > batchMaxPages) {
+            logger.debug(pfx + "Denied batch request: " + pagePids.size() + " pages exceeds the limit of " + batchMaxPages);
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        resp.setContentType("application/zip");
+        resp.setHeader("Content-Disposition", "attachment; filename=" + name.replaceAll("[^A-Za-z0-9._-]", "_") + ".zip");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        final CountingOutputStream counter = new CountingOutputStream(resp.getOutputStream());
+        final ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(counter, 64 * 1024));
+
+        final CompletionService<BatchPage> completion = new ExecutorCompletionService<BatchPage>(batchExecutor);
+        final List<Future<BatchPage>> tasks = new ArrayList<Future<BatchPage>>();
+        final String[] manifest = new String[pagePids.size()];
+        int failures = 0;
+        try {
+            int next = 0;
+            int running = 0;
+            while (next < pagePids.size() || running > 0) {
+                while (running < batchParallelism && next < pagePids.size()) {
+                    final int index = next ++;
+                    tasks.add(completion.submit(new Callable<BatchPage>() {
+                        public BatchPage call() {
+                            return renderBatchPage(index, pagePids.get(index), metadataPid, size, encoding, items, req, pfx);
+                        }
+                    }));
+                    running ++;
+                }
+                final BatchPage page = await(completion.take());
+                running --;
+                if (page.image != null) {
+                    writeStoredEntry(zip, page.entryName, page.image);
+                    manifest[page.index] = page.pagePid + "\t200\t" + page.entryName;
+                } else {
+                    manifest[page.index] = page.pagePid + "\t" + page.status + "\t" + page.reason;
+                    failures ++;
+                }
+            }
+
+            final StringBuilder text = new StringBuilder("pid\tstatus\tfile or reason\n");
+            for (String line : manifest) {
+                text.append(line).append('\n');
+            }
+            writeStoredEntry(zip, "manifest.txt", text.toString().getBytes("UTF-8"));
+            zip.close();
+        } catch (Exception ex) {
+            // the response has started, so all we can do is cut it short
+            logger.warn(pfx + "Failed batch request after the response was started: " + ex.getMessage(), ex);
+            return;
+        } finally {
+            for (Future<BatchPage> task : tasks) {
+                task.cancel(true);
+            }
+        }
+
+        long end = System.currentTimeMillis();
+        logger.info(pfx + "Serviced batch request" + (metadataPid == null ? "" : " for \"" + metadataPid + "\"") + " (" + pagePids.size() + " pages, " + failures + " failed, " + counter.getByteCount() + " bytes) in " + (end - start) + " ms.");
+    }
+
+    /**
+     * The outcome for one page of a batch: either its wrapped image, or the
+     * status with which it would have been refused and the reason.
+     */
+    static class BatchPage {
+        private final int index;
+        private final String pagePid;
+        private String entryName;
+        private byte[] image;
+        private int status;
+        private String reason;
+
+        BatchPage(int index, String pagePid) {
+            this.index = index;
+            this.pagePid = pagePid;
+        }
+    }
+
+    private BatchPage renderBatchPage(final int index, final String pagePid, final String metadataPid, final ImageSize size, final OutputEncoding encoding, final ConcurrentHashMap<String, CompletableFuture<PageInfo>> items, final HttpServletRequest req, final String pfx) {
+        final BatchPage result = new BatchPage(index, pagePid);
+        try {
+            final PageInfo page = resolveBatchItem(pagePid, metadataPid, items, pfx);
+            if (page.solrDoc != null && !canAccessResource(page.solrDoc, req, pfx)) {
+                throw new PageException(HttpServletResponse.SC_FORBIDDEN);
+            }
+            result.image = renderImage(pagePid, size, encoding, page.fullCitation, false, pfx);
+            result.entryName = String.format("%04d-%s.jpg", index + 1, pagePid.replaceAll("[^A-Za-z0-9._-]", "_"));
+        } catch (PageException ex) {
+            result.status = ex.getStatus();
+            result.reason = describeFailure(ex.getStatus());
+        } catch (Exception ex) {
+            logger.warn(pfx + "Unable to render \"" + pagePid + "\" for batch: " + ex.getMessage(), ex);
+            result.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            result.reason = "unable to render page";
+        }
+        return result;
+    }
+
+    /**
+     * Returns the metadata for the item to which a page of a batch belongs,
+     * resolving it only for the first of its pages.  The pages of an expanded
+     * metadata pid are known to belong to it, so aren't looked up at all.
+     */
+    private PageInfo resolveBatchItem(final String pagePid, final String metadataPid, final ConcurrentHashMap<String, CompletableFuture<PageInfo>> items, final String pfx) throws Exception {
+        String itemPid = metadataPid;
+        if (itemPid == null) {
+            final Future<TracksysPid> tsPidLookup = submitTracksysPidLookup(pagePid, pfx);
+            final TracksysPid tsPid;
+            try {
+                tsPid = await(tsPidLookup);
+            } catch (Exception ex) {
+                logger.error(pfx + "Exception querying Tracksys pid info for page pid:", ex);
+                throw new PageException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            if (tsPid.pid.equals("")) {
+                logger.error(pfx + "Pid " + pagePid + " not found in Tracksys.");
+                throw new PageException(HttpServletResponse.SC_NOT_FOUND);
+            }
+            itemPid = tsPid.parentMetadataPid.equals("") ? tsPid.pid : tsPid.parentMetadataPid;
+
+            final CompletableFuture<PageInfo> resolving = new CompletableFuture<PageInfo>();
+            if (items.putIfAbsent(itemPid, resolving) == null) {
+                try {
+                    resolving.complete(resolvePage(pagePid, tsPidLookup, pfx));
+                } catch (PageException ex) {
+                    resolving.completeExceptionally(ex);
+                }
+            }
+        }
+        return await(items.get(itemPid));
+    }
+
+    /**
+     * A short description of the status with which a page was refused, for
+     * listings of failed pages.
+     */
+    private static String describeFailure(final int status) {
+        switch (status) {
+            case HttpServletResponse.SC_FORBIDDEN:
+                return "access denied";
+            case HttpServletResponse.SC_NOT_FOUND:
+                return "not found";
+            case HttpServletResponse.SC_SERVICE_UNAVAILABLE:
+                return "too many renders in progress, try again later";
+            default:
+                return "unable to serve page";
+        }
+    }
+
+    /**
+     * Downloads and wraps the image for a page, using (and filling) the
+     * output cache, and returns the tagged JPEG.  Background renders only use
+     * render capacity that no request is waiting for.
+     */
+    private byte[] renderImage(final String pagePid, final ImageSize size, final OutputEncoding encoding, final String fullCitation, final boolean background, final String pfx) throws Exception {
+        final String cacheKey = getCacheKey(pagePid, size, encoding, fullCitation);
+        final File cached = outputCache == null ? null : outputCache.get(cacheKey);
+        if (cached != null) {
+            try {
+                final FileInputStream cachedIn = new FileInputStream(cached);
+                try {
+                    return IOUtils.toByteArray(cachedIn);
+                } finally {
+                    cachedIn.close();
+                }
+            } catch (FileNotFoundException ex) {
+                logger.debug(pfx + "Cached image was evicted before it could be read");
+            }
+        }
+
+        boolean admitted = false;
+        ImageDownload orig = null;
+        try {
+            if (streamResponses) {
+                // as for a request, a streamed download isn't opened until
+                // the render may start
+                acquireRenderPermit(pagePid, background, pfx);
+                admitted = true;
+            }
+            orig = startImageDownload(pagePid, size, pfx);
+            final long downloadStarted = System.nanoTime();
+            try {
+                orig.await();
+            } catch (RuntimeException ex) {
+                if (ex.getMessage() != null && (ex.getMessage().startsWith("400") || ex.getMessage().startsWith("404"))) {
+                    logger.debug(pfx + "Unable to download image for \"" + pagePid + "\": " + ex.getMessage());
+                    throw new PageException(HttpServletResponse.SC_NOT_FOUND);
+                }
+                throw ex;
+            } finally {
+                stageDurations.get("download").observeSince(downloadStarted);
+            }
+
+            if (!admitted) {
+                acquireRenderPermit(pagePid, background, pfx);
+                admitted = true;
+            }
+            final ByteArrayOutputStream image = new ByteArrayOutputStream();
+            try {
+                final UserCommentOutputStream tagged = UserCommentOutputStream.create(image, fullCitation, encoding.getFormat());
+                final InputStream in = streamResponses ? orig.getStream() : new FileInputStream(orig.getFile());
+                final long borderStarted = System.nanoTime();
+                try {
+                    renderer.addBorder(pfx, in, tagged, fullCitation, encoding);
+                } finally {
+                    if (!streamResponses) {
+                        in.close();
+                    }
+                }
+                tagged.finish();
+                stageDurations.get("border").observeSince(borderStarted);
+            } finally {
+                admitted = false;
+                renderLimiter.release();
+            }
+
+            if (outputCache != null) {
+                try {
+                    final OutputCache.Writer cacheEntry = outputCache.begin(cacheKey);
+                    try {
+                        cacheEntry.getOutputStream().write(image.toByteArray());
+                        cacheEntry.commit();
+                    } catch (IOException ex) {
+                        cacheEntry.abort();
+                        throw ex;
+                    }
+                } catch (IOException ex) {
+                    logger.warn(pfx + "Unable to cache wrapped image for \"" + pagePid + "\"", ex);
+                }
+            }
+            return image.toByteArray();
+        } finally {
+            if (admitted) {
+                renderLimiter.release();
+            }
+            if (orig != null) {
+                orig.discard();
+            }
+        }
+    }
+
+    /**
+     * Waits for permission to render a page of a batch or pre-render job,
+     * throwing a PageException (503) if it is turned away.
+     */
+    private void acquireRenderPermit(final String pagePid, final boolean background, final String pfx) throws InterruptedException, PageException {
+        if (background) {
+            renderLimiter.acquireBackground();
+        } else {
+            final long queueStarted = System.nanoTime();
+            final boolean admitted = renderLimiter.acquire();
+            stageDurations.get("render_queue").observeSince(queueStarted);
+            if (!admitted) {
+                logger.info(pfx + "Deferred batch page \"" + pagePid + "\": too many renders in progress (" + renderLimiter.getStats() + ")");
+                throw new PageException(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+        }
+    }
+
+    /**
+     * Starts a job that renders every page of the given metadata pids (the
+     * "pids" parameter, separated by commas) into the output cache (POST), or
+     * reports the progress of the given job or of all recent jobs (GET).  Only
+     * available when an ADMIN_TOKEN and output cache are configured, and
+     * only to callers presenting that token as a bearer token.
+     */
+    @SuppressWarnings("unchecked")
+    private void prerenderHandler(HttpServletRequest req, HttpServletResponse resp, final String jobId) throws ServletException, IOException {
+        if (adminToken == null || adminToken.equals("") || outputCache == null) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final String authorization = req.getHeader("Authorization");
+        if (authorization == null || !MessageDigest.isEqual(("Bearer " + adminToken).getBytes("UTF-8"), authorization.getBytes("UTF-8"))) {
+            logger.info("Denied pre-render request from " + req.getRemoteHost() + ": missing or incorrect token");
+            resp.setHeader("WWW-Authenticate", "Bearer");
+            resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        final Object result;
+        if (req.getMethod().equals("POST")) {
+            final List<String> metadataPids = new ArrayList<String>();
+            final String pids = req.getParameter("pids");
+            if (pids != null) {
+                for (String pid : pids.split("[,\\s]+")) {
+                    if (!pid.equals("") && !metadataPids.contains(pid)) {
+                        metadataPids.add(pid);
+                    }
+                }
+            }
+            if (metadataPids.isEmpty()) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            final PrerenderJob job = startPrerenderJob(metadataPids);
+            logger.info("Started pre-render job " + job.getId() + " for " + metadataPids);
+            result = job.toJson();
+            resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        } else if (jobId != null) {
+            final PrerenderJob job;
+            synchronized (prerenderJobs) {
+                job = prerenderJobs.get(jobId);
+            }
+            if (job == null) {
+                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            result = job.toJson();
+            resp.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            final JSONArray jobs = new JSONArray();
+            synchronized (prerenderJobs) {
+                for (PrerenderJob job : prerenderJobs.values()) {
+                    jobs.add(job.toJson());
+                }
+            }
+            result = jobs;
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        resp.setContentType("application/json");
+        IOUtils.write(result.toString(), resp.getOutputStream(), "UTF-8");
         resp.getOutputStream().close();
     }
 
-    private void pidHandler(HttpServletRequest req, HttpServletResponse resp, final String pagePid, final String pfx) throws ServletException, IOException {
-        long start = System.currentTimeMillis();
+    private PrerenderJob startPrerenderJob(final List<String> metadataPids) {
+        final PrerenderJob job = new PrerenderJob(String.format("%1$08x", rand.nextInt()), metadataPids);
+        synchronized (prerenderJobs) {
+            int finished = 0;
+            for (PrerenderJob existing : prerenderJobs.values()) {
+                if (existing.isFinished()) {
+                    finished ++;
+                }
+            }
+            final Iterator<PrerenderJob> oldest = prerenderJobs.values().iterator();
+            while (finished >= MAX_FINISHED_PRERENDER_JOBS && oldest.hasNext()) {
+                if (oldest.next().isFinished()) {
+                    oldest.remove();
+                    finished --;
+                }
+            }
+            prerenderJobs.put(job.getId(), job);
+        }
 
-        String referer = req.getHeader("referer");
-        if (referer == null) {
-            referer = "";
-        } else {
-            referer = " (referer: " + referer + ")";
+        // the items are expanded into their pages on the pre-render pool too,
+        // so that starting a job returns at once
+        final String pfx = "[prerender " + job.getId() + "] ";
+        for (final String metadataPid : metadataPids) {
+            prerenderExecutor.execute(new Runnable() {
+                public void run() {
+                    expandPrerenderItem(job, metadataPid, pfx);
+                }
+            });
         }
+        return job;
+    }
 
-        // will be checked if set, not for value
-        String download = req.getParameter("download");
+    private void expandPrerenderItem(final PrerenderJob job, final String metadataPid, final String pfx) {
+        final PageInfo item;
+        final List<String> pagePids;
+        try {
+            item = resolvePage(metadataPid, submitTracksysPidLookup(metadataPid, pfx), pfx);
+            pagePids = getTracksysManifest(metadataPid, pfx);
+        } catch (PageException ex) {
+            job.itemFailed(metadataPid, ex.getStatus(), describeFailure(ex.getStatus()));
+            return;
+        } catch (Exception ex) {
+            logger.warn(pfx + "Unable to expand \"" + metadataPid + "\": " + ex.getMessage(), ex);
+            job.itemFailed(metadataPid, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "unable to list pages");
+            return;
+        }
+        job.itemExpanded(pagePids.size());
+        for (final String pagePid : pagePids) {
+            prerenderExecutor.execute(new Runnable() {
+                public void run() {
+                    prerenderPage(job, pagePid, item.fullCitation, pfx);
+                }
+            });
+        }
+    }
 
-        // ensure the page pid is actually in IIIF before proceeding
+    private void prerenderPage(final PrerenderJob job, final String pagePid, final String fullCitation, final String pfx) {
         try {
-            queryLargeImage(pagePid, pfx);
-        } catch (RuntimeException ex) {
-            String message = ex.getMessage();
-            if (message == null) {
-                message = "";
+            if (outputCache.get(getCacheKey(pagePid, defaultSize, defaultEncoding, fullCitation)) != null) {
+                job.pageCached();
+                return;
             }
+            renderImage(pagePid, defaultSize, defaultEncoding, fullCitation, true, pfx);
+            job.pageRendered();
+        } catch (PageException ex) {
+            job.pageFailed(pagePid, ex.getStatus(), describeFailure(ex.getStatus()));
+        } catch (Exception ex) {
+            logger.warn(pfx + "Unable to pre-render \"" + pagePid + "\": " + ex.getMessage(), ex);
+            job.pageFailed(pagePid, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "unable to render page");
+        }
+    }
 
-            logger.debug(pfx + "IIIF image query for pid " + pagePid + " failed: " + message + referer);
+    /**
+     * Adds an uncompressed entry to the archive; JPEGs don't compress, so
+     * deflating them would only cost time.
+     */
+    private static void writeStoredEntry(final ZipOutputStream zip, final String name, final byte[] content) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
 
-            if (message.startsWith("400") || message.startsWith("404")) {
-                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            } else {
-                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            }
+    /**
+     * Thrown when a page can't be served, carrying the HTTP status with which
+     * the request should be answered.  The reason has already been logged.
+     */
+    static class PageException extends Exception {
+        private static final long serialVersionUID = 1L;
 
-            return;
+        private final int status;
+
+        PageException(int status) {
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
         }
+    }
+
+    /**
+     * Everything about a page needed to decide whether it may be served and
+     * to wrap it: the Tracksys records for its metadata pid, its solr record
+     * (if any) and the full citation and rights text for the border.
+     */
+    class PageInfo {
+        private TracksysPid tsMetaPid;
+        private TracksysMetadata tsMeta;
+        private String solrId;
+        private SolrDocument solrDoc;
+        private String fullCitation;
+    }
+
+    /**
+     * Looks up the Tracksys, solr and citation information for a page.  The
+     * lookups form a chain (the metadata pid comes from the page's Tracksys
+     * record, the solr id from the metadata, the citation from the solr core)
+     * so only the independent lookups of the metadata pid's Tracksys record
+     * and its metadata run concurrently.
+     */
+    private PageInfo resolvePage(final String pagePid, final Future<TracksysPid> tsPidLookup, final String pfx) throws PageException {
+        return resolvePage(pagePid, tsPidLookup, new ServerTiming(), pfx);
+    }
+
+    /**
+     * Looks up the information for a page as above, recording the time spent
+     * waiting on Tracksys, solr and the citations service.
+     */
+    private PageInfo resolvePage(final String pagePid, final Future<TracksysPid> tsPidLookup, final ServerTiming timing, final String pfx) throws PageException {
+        final PageInfo page = new PageInfo();
+        final long tracksysStarted = System.nanoTime();
 
         // look up pid info for this page in tracksys
         TracksysPid tsPid;
         try {
-            tsPid = new TracksysPid(tracksysBaseUrl, pagePid, pfx);
+            tsPid = await(tsPidLookup);
 
             if (tsPid.pid.equals("")) {
                 logger.error(pfx + "Pid " + pagePid + " not found in Tracksys.");
-                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-                return;
+                throw new PageException(HttpServletResponse.SC_NOT_FOUND);
             }
 
             switch (tsPid.type) {
                 case "master_file":
                     if (tsPid.parentMetadataPid.equals("")) {
                         logger.error(pfx + "Pid " + pagePid + " has no parent metadata pid.");
-                        resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                        return;
+                        throw new PageException(HttpServletResponse.SC_BAD_REQUEST);
                     }
                     break;
 
@@ -306,54 +1760,73 @@ public class ConvertServlet extends HttpServlet {
 
                 default:
                     logger.error(pfx + "Pid " + pagePid + " has unsupported type: " + tsPid.type);
-                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    return;
+                    throw new PageException(HttpServletResponse.SC_BAD_REQUEST);
             }
+        } catch (PageException e) {
+            throw e;
         } catch (Exception e) {
             logger.error(pfx + "Exception querying Tracksys pid info for page pid:", e);
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            return;
+            throw new PageException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
 
-        // if not a master file, look up pid info for this page's metadata pid in tracksys
+        // if not a master file, look up pid info for this page's metadata pid
+        // in tracksys, while at the same time looking up its metadata
         TracksysPid tsMetaPid;
+        TracksysMetadata tsMeta;
         String metadataPid;
+        Future<TracksysPid> tsMetaPidLookup = null;
 
         if (tsPid.parentMetadataPid.equals("")) {
             // this is likely a pid where master file pid == metadata pid
             metadataPid = tsPid.pid;
-            tsMetaPid = tsPid;
         } else {
             metadataPid = tsPid.parentMetadataPid;
+            tsMetaPidLookup = submitTracksysPidLookup(metadataPid, pfx);
+        }
+        final Future<TracksysMetadata> tsMetaLookup = submitTracksysMetadataLookup(metadataPid, pfx);
+
+        try {
+            if (tsMetaPidLookup == null) {
+                tsMetaPid = tsPid;
+            } else {
+                try {
+                    tsMetaPid = await(tsMetaPidLookup);
+                    if (tsMetaPid.pid.equals("")) {
+                        logger.error(pfx + "Metadata pid " + metadataPid + " not found in Tracksys.");
+                        throw new PageException(HttpServletResponse.SC_NOT_FOUND);
+                    }
+                } catch (PageException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error(pfx + "Exception querying Tracksys pid info for metadata pid:", e);
+                    throw new PageException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            }
+
+            // look up metadata info for this page in tracksys
             try {
-                tsMetaPid = new TracksysPid(tracksysBaseUrl, metadataPid, pfx);
-                if (tsMetaPid.pid.equals("")) {
-                    logger.error(pfx + "Metadata pid " + metadataPid + " not found in Tracksys.");
-                    resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-                    return;
+                tsMeta = await(tsMetaLookup);
+                if (tsMeta.pid.equals("")) {
+                    logger.error(pfx + "Pid " + metadataPid + " metadata not found in Tracksys.");
+                    throw new PageException(HttpServletResponse.SC_NOT_FOUND);
                 }
+            } catch (PageException e) {
+                throw e;
             } catch (Exception e) {
-                logger.error(pfx + "Exception querying Tracksys pid info for metadata pid:", e);
-                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                return;
+                logger.error(pfx + "Exception querying Tracksys metadata info:", e);
+                throw new PageException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             }
-        }
-
-        // look up metadata info for this page in tracksys
-        TracksysMetadata tsMeta;
-        try {
-            tsMeta = new TracksysMetadata(tracksysBaseUrl, metadataPid, pfx);
-            if (tsMeta.pid.equals("")) {
-                logger.error(pfx + "Pid " + metadataPid + " metadata not found in Tracksys.");
-                resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-                return;
+        } finally {
+            if (tsMetaPidLookup != null) {
+                tsMetaPidLookup.cancel(true);
             }
-        } catch (Exception e) {
-            logger.error(pfx + "Exception querying Tracksys metadata info:", e);
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            return;
+            tsMetaLookup.cancel(true);
+            timing.add("tracksys", tracksysStarted);
         }
 
+        page.tsMetaPid = tsMetaPid;
+        page.tsMeta = tsMeta;
+
         // set up item-dependent solr id
         String solrId = "";
 
@@ -365,14 +1838,12 @@ public class ConvertServlet extends HttpServlet {
             solrId = tsMetaPid.pid;
         } else {
             logger.error(pfx + "Unsupported metadata type: " + tsMetaPid.type);
-            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            return;
+            throw new PageException(HttpServletResponse.SC_BAD_REQUEST);
         }
 
         if (solrId.equals("")) {
             logger.error(pfx + "Unable to determine solr id");
-            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            return;
+            throw new PageException(HttpServletResponse.SC_BAD_REQUEST);
         }
 
         logger.debug(pfx + "Using solr id " + solrId + " for metadata type " + tsMetaPid.type);
@@ -381,30 +1852,23 @@ public class ConvertServlet extends HttpServlet {
         // check Solr for access policy (allow if no solr record found)
         SolrDocument solrDoc = null;
         String poolBaseUrl = "";
+        final long solrStarted = System.nanoTime();
         try {
-            solrDoc = findSolrDocForId(solrCatalog, solrId);
-            if (solrDoc != null) {
-                logger.debug(pfx + "Found record in catalog solr core");
-                poolBaseUrl = catalogPoolBaseUrl;
-            } else {
-                solrDoc = findSolrDocForId(solrImages, solrId);
-                if (solrDoc != null) {
-                    logger.debug(pfx + "Found record in images solr core");
-                    poolBaseUrl = imagesPoolBaseUrl;
-                } else {
-                    logger.debug(pfx + "Item not found in any solr core");
-                }
-            }
+            SolrRecord solrRecord = findSolrRecord(solrId, pfx);
+            solrDoc = solrRecord.doc;
+            poolBaseUrl = solrRecord.poolBaseUrl;
         } catch (SolrServerException e) {
             // let request through
             // TODO: maybe check rights-ws as a fallback?
+        } catch (Exception e) {
+            logger.error(pfx + "Exception querying solr:", e);
+            throw new PageException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            timing.add("solr", solrStarted);
         }
 
-        if (solrDoc != null && !canAccessResource(solrDoc, req, pfx)) {
-            logger.debug(pfx + "Denied request for \"" + solrId + "\": unauthorized: " + referer);
-            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
-            return;
-        }
+        page.solrId = solrId;
+        page.solrDoc = solrDoc;
 
         // build full citation from MLA citation plus rights info
 
@@ -412,17 +1876,22 @@ public class ConvertServlet extends HttpServlet {
         String citation = "";
 
         if (!poolBaseUrl.equals("")) {
+            final long citationStarted = System.nanoTime();
             try {
-                citation = getCitation(poolBaseUrl, solrId, pfx);
+                citation = getCachedCitation(poolBaseUrl, solrId, pfx);
 
-                logger.debug(pfx + "Using provided citation");
+                if (!citation.equals("")) {
+                    logger.debug(pfx + "Using provided citation");
 
-                // add call number to help identify copy
-                if (!tsMeta.callNumber.equals("")) {
-                    citation += "\n" + tsMeta.callNumber;
+                    // add call number to help identify copy
+                    if (!tsMeta.callNumber.equals("")) {
+                        citation += "\n" + tsMeta.callNumber;
+                    }
                 }
             } catch (Exception e) {
                 logger.warn(pfx + "Exception generating citation:", e);
+            } finally {
+                timing.add("citation", citationStarted);
             }
         }
 
@@ -470,61 +1939,217 @@ public class ConvertServlet extends HttpServlet {
             logger.info(pfx + "Unable to generate citation for " + tsMetaPid.pid + ", will return an image without a citation.");
         }
 
-        // return result (either metadata or framed image)
-        if (req.getParameter("justMetadata") != null) {
-            resp.setContentType("text/plain");
-            resp.setStatus(HttpServletResponse.SC_OK);
-            resp.getOutputStream().write((fullCitation).getBytes("UTF-8"));
-            resp.getOutputStream().close();
-        } else {
-            File orig = File.createTempFile(tsMetaPid.pid + "-orig-", ".jpg");
-            File framed = File.createTempFile(tsMetaPid.pid + "-wrapped-", ".jpg");
-            File tagged = File.createTempFile(tsMetaPid.pid + "-wrapped-tagged-", ".jpg");
-            try {
-                FileOutputStream origOut = new FileOutputStream(orig);
-                try {
-                    downloadLargeImage(pagePid, origOut, pfx);
-                } catch (RuntimeException ex) {
-                    if (ex.getMessage() != null && ex.getMessage().startsWith("400")) {
-                        logger.debug(pfx + "Denied request for \"" + pagePid + "\": 404 unable to download image" + referer);
-                        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-                        return;
-                    } else {
-                        logger.debug(pfx + "Denied request for \"" + pagePid + "\": " + ex.getMessage() + referer);
-                        resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                        return;
+        page.fullCitation = fullCitation;
+        return page;
+    }
+
+    /**
+     * Waits for the result of a task run on the upstream executor, rethrowing
+     * whatever exception the task itself threw.
+     */
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A download of the large IIIF image, which runs on the upstream executor
+     * and so may be started before it is known whether the image will be
+     * needed.  Whether IIIF has the image at all is known as soon as the
+     * response status arrives, well before the download is complete.
+     *
+     * The image is either downloaded into a temporary file or, when streaming,
+     * left unread in the response so that it can be piped straight into the
+     * renderer.
+     */
+    class ImageDownload {
+        private final File file;
+        private final HttpGet get;
+        private final CompletableFuture<Void> found = new CompletableFuture<Void>();
+        private final Future<InputStream> result;
+        private boolean taken = false;
+
+        ImageDownload(final String pid, final ImageSize size, final boolean toFile, final String pfx) throws IOException {
+            file = toFile ? File.createTempFile(pid.replaceAll("[^A-Za-z0-9._-]", "_") + "-orig-", ".jpg") : null;
+            get = new HttpGet();
+            result = upstreamExecutor.submit(new Callable<InputStream>() {
+                public InputStream call() throws Exception {
+                    try {
+                        // a box can't be requested until it is known how much
+                        // of the image it would be
+                        String iiifSize = size.getIiifSize();
+                        if (size.isBox()) {
+                            final int[] dimensions = queryImageInfo(pid, pfx);
+                            iiifSize = size.getIiifSize(dimensions[0], dimensions[1]);
+                        }
+                        get.setURI(URI.create(getLargeImageUrl(pid, iiifSize)));
+                    } catch (Exception ex) {
+                        found.completeExceptionally(ex);
+                        throw ex;
+                    }
+                    final long started = System.nanoTime();
+                    try {
+                        final InputStream body = openLargeImage(get, pfx);
+                        found.complete(null);
+                        if (file == null) {
+                            // the rest of the download is part of the render
+                            upstreamDurations.get("iiif_image").observeSince(started);
+                            return body;
+                        }
+                        FileOutputStream out = new FileOutputStream(file);
+                        try {
+                            IOUtils.copy(body, out);
+                        } finally {
+                            out.close();
+                            get.releaseConnection();
+                        }
+                        upstreamDurations.get("iiif_image").observeSince(started);
+                        return null;
+                    } catch (Exception ex) {
+                        // a no-op if the status was already reported
+                        found.completeExceptionally(ex);
+                        get.releaseConnection();
+                        throw ex;
                     }
-                } finally {
-                    origOut.close();
                 }
-                // add the frame
-                logger.debug(pfx + "[Add image frame]");
-                convert.addBorder(pfx, orig, framed, fullCitation);
+            });
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * Waits until IIIF has responded with the image, rethrowing the
+         * exception that ended the download if it didn't.
+         */
+        void awaitFound() throws Exception {
+            ConvertServlet.await(found);
+        }
 
-                // add the exif
-                logger.debug(pfx + "[Add image exif]");
-                addUserComment(framed, tagged, fullCitation);
+        /**
+         * Waits for the download to complete (or, when streaming, to be ready
+         * to read), rethrowing any exception encountered while downloading.
+         */
+        void await() throws Exception {
+            ConvertServlet.await(result);
+        }
 
-                // return the content
+        /**
+         * Returns the unread image, when streaming.
+         */
+        InputStream getStream() throws Exception {
+            final InputStream body = ConvertServlet.await(result);
+            taken = true;
+            return body;
+        }
 
-                if (download != null) {
-                    resp.setHeader("Content-Disposition", "attachment; filename=" + tsMetaPid.pid + ".jpg");
+        /**
+         * Aborts the download (if still in progress) and deletes the file.
+         * A stream that was read is closed instead, so that its connection
+         * can be reused.
+         */
+        void discard() {
+            if (taken) {
+                try {
+                    result.get().close();
+                } catch (Exception ex) {
+                    get.abort();
                 }
+            } else if (file == null || !result.isDone()) {
+                get.abort();
+                result.cancel(true);
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
 
-                resp.setContentType("image/jpeg");
-                resp.setStatus(HttpServletResponse.SC_OK);
-                IOUtils.copy(new FileInputStream(tagged), resp.getOutputStream());
-                long size = orig.length();
-                long end = System.currentTimeMillis();
-                logger.info(pfx + "Serviced request for \"" + pagePid + "\" (" + size + " bytes) in " + (end - start) + " ms." + referer);
-            } catch (Exception ex) {
-                logger.warn(pfx + "Denied request for \"" + pagePid + "\": " + ex.getMessage() + referer, ex);
-                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                return;
-            } finally {
-                orig.delete();
-                framed.delete();
-                tagged.delete();
+    private ImageDownload startImageDownload(final String pid, final ImageSize size, final String pfx) throws IOException {
+        return new ImageDownload(pid, size, !streamResponses, pfx);
+    }
+
+    /**
+     * The output cache key for a page at a size and encoding, which also
+     * depends on the renderer and the text of the border.
+     */
+    private String getCacheKey(final String pagePid, final ImageSize size, final OutputEncoding encoding, final String fullCitation) {
+        return OutputCache.key(pagePid, borderRendererName, fullCitation, size.toString(), encoding.toString());
+    }
+
+    /**
+     * The solr record (if any) for an item, along with the pool base url of
+     * the core in which it was found.
+     */
+    static class SolrRecord {
+        private final SolrDocument doc;
+        private final String poolBaseUrl;
+
+        SolrRecord(SolrDocument doc, String poolBaseUrl) {
+            this.doc = doc;
+            this.poolBaseUrl = poolBaseUrl;
+        }
+    }
+
+    private SolrRecord findSolrRecord(final String solrId, final String pfx) throws Exception {
+        return solrCache.get(solrId, new TtlCache.Loader<SolrRecord>() {
+            public SolrRecord load() throws Exception {
+                return querySolrCores(solrId, pfx);
+            }
+        }, pfx);
+    }
+
+    /**
+     * Queries the catalog and images cores at the same time, preferring a
+     * record from the catalog core if both have one.
+     */
+    private SolrRecord querySolrCores(final String solrId, final String pfx) throws SolrServerException, InterruptedException {
+        final Future<SolrDocument> catalog = submitSolrQuery(solrCatalog, solrId);
+        final Future<SolrDocument> images = submitSolrQuery(solrImages, solrId);
+        try {
+            SolrDocument solrDoc = getSolrQueryResult(catalog);
+            if (solrDoc != null) {
+                logger.debug(pfx + "Found record in catalog solr core");
+                return new SolrRecord(solrDoc, catalogPoolBaseUrl);
+            }
+            solrDoc = getSolrQueryResult(images);
+            if (solrDoc != null) {
+                logger.debug(pfx + "Found record in images solr core");
+                return new SolrRecord(solrDoc, imagesPoolBaseUrl);
+            }
+            logger.debug(pfx + "Item not found in any solr core");
+            return new SolrRecord(null, "");
+        } finally {
+            catalog.cancel(true);
+            images.cancel(true);
+        }
+    }
+
+    private Future<SolrDocument> submitSolrQuery(final SolrServer solr, final String id) {
+        return upstreamExecutor.submit(new Callable<SolrDocument>() {
+            public SolrDocument call() throws SolrServerException {
+                return findSolrDocForId(solr, id);
+            }
+        });
+    }
+
+    private SolrDocument getSolrQueryResult(final Future<SolrDocument> query) throws SolrServerException, InterruptedException {
+        try {
+            return query.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SolrServerException) {
+                throw (SolrServerException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
             }
         }
     }
@@ -533,9 +2158,16 @@ public class ConvertServlet extends HttpServlet {
         final ModifiableSolrParams p = new ModifiableSolrParams();
         p.set("q", new String[] { "id:\"" + id + "\"" });
         p.set("rows", 2);
+        // only the access policy is needed
+        p.set("fl", "id,policy_a");
 
         QueryResponse response = null;
-        response = solr.query(p);
+        final long started = System.nanoTime();
+        try {
+            response = solr.query(p);
+        } finally {
+            upstreamDurations.get(solr == solrCatalog ? "solr_catalog" : "solr_images").observeSince(started);
+        }
         if (response.getResults().size() == 1) {
             return response.getResults().get(0);
         } else {
@@ -543,6 +2175,86 @@ public class ConvertServlet extends HttpServlet {
         }
     }
 
+    private Future<TracksysPid> submitTracksysPidLookup(final String pid, final String pfx) {
+        return upstreamExecutor.submit(new Callable<TracksysPid>() {
+            public TracksysPid call() throws Exception {
+                return getTracksysPid(pid, pfx);
+            }
+        });
+    }
+
+    private Future<TracksysMetadata> submitTracksysMetadataLookup(final String metadataPid, final String pfx) {
+        return upstreamExecutor.submit(new Callable<TracksysMetadata>() {
+            public TracksysMetadata call() throws Exception {
+                return getTracksysMetadata(metadataPid, pfx);
+            }
+        });
+    }
+
+    private TracksysPid getTracksysPid(final String pid, final String pfx) throws Exception {
+        return tracksysPidCache.get(pid, new TtlCache.Loader<TracksysPid>() {
+            public TracksysPid load() throws Exception {
+                return new TracksysPid(tracksysBaseUrl, pid, pfx);
+            }
+        }, pfx);
+    }
+
+    private TracksysMetadata getTracksysMetadata(final String metadataPid, final String pfx) throws Exception {
+        return tracksysMetadataCache.get(metadataPid, new TtlCache.Loader<TracksysMetadata>() {
+            public TracksysMetadata load() throws Exception {
+                return new TracksysMetadata(tracksysBaseUrl, metadataPid, pfx);
+            }
+        }, pfx);
+    }
+
+    /**
+     * Returns the pids of the master files of the given metadata pid, in
+     * order, or an empty list if Tracksys has no manifest for it.
+     */
+    private List<String> getTracksysManifest(final String metadataPid, final String pfx) throws ClientProtocolException, IOException, ParseException, RuntimeException {
+        final String url = tracksysBaseUrl + "manifest/" + metadataPid;
+        final List<String> pids = new ArrayList<String>();
+
+        HttpGet get = new HttpGet(url);
+        final long started = System.nanoTime();
+        try {
+            logger.debug(pfx + "[manifest lookup] : " + url);
+            HttpResponse response = client.execute(get);
+
+            if (response.getStatusLine().getStatusCode() == 404) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return pids;
+            }
+
+            if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw new RuntimeException(response.getStatusLine().getStatusCode() + " response from " + url + ".");
+            }
+
+            JSONArray masterFiles = (JSONArray) new JSONParser().parse(EntityUtils.toString(response.getEntity()));
+            for (Object masterFile : masterFiles) {
+                pids.add(((JSONObject) masterFile).get("pid").toString());
+            }
+            logger.debug(pfx + "    master files = " + pids.size());
+            return pids;
+        } finally {
+            get.releaseConnection();
+            upstreamDurations.get("tracksys_manifest").observeSince(started);
+        }
+    }
+
+    /**
+     * Returns the (possibly cached) citation for the given item, or an empty
+     * string if the citations service has no record of it.
+     */
+    private String getCachedCitation(final String poolBaseUrl, final String id, final String pfx) throws Exception {
+        return citationCache.get(poolBaseUrl + id, new TtlCache.Loader<String>() {
+            public String load() throws Exception {
+                return getCitation(poolBaseUrl, id, pfx);
+            }
+        }, pfx);
+    }
+
     class TracksysPid {
         private String pid = "";
         private String type = "";
@@ -552,15 +2264,18 @@ public class ConvertServlet extends HttpServlet {
             final String url = tracksysBaseUrl + "pid/" + pagePid;
 
             HttpGet get = new HttpGet(url);
+            final long started = System.nanoTime();
             try {
                 logger.debug(pfx + "[pid lookup] : " + url);
                 HttpResponse response = client.execute(get);
 
                 if (response.getStatusLine().getStatusCode() == 404) {
+                    EntityUtils.consumeQuietly(response.getEntity());
                     return;
                 }
 
                 if (response.getStatusLine().getStatusCode() != 200) {
+                    EntityUtils.consumeQuietly(response.getEntity());
                     throw new RuntimeException(response.getStatusLine().getStatusCode() + " response from " + url + ".");
                 }
 
@@ -591,6 +2306,7 @@ public class ConvertServlet extends HttpServlet {
                 logger.debug(pfx + "    parentMetadataPid = [" + parentMetadataPid + "]");
             } finally {
                 get.releaseConnection();
+                upstreamDurations.get("tracksys_pid").observeSince(started);
             }
         }
     }
@@ -606,15 +2322,18 @@ public class ConvertServlet extends HttpServlet {
             final String url = tracksysBaseUrl + "metadata/" + metadataPid + "?type=brief";
 
             HttpGet get = new HttpGet(url);
+            final long started = System.nanoTime();
             try {
                 logger.debug(pfx + "[metadata lookup] : " + url);
                 HttpResponse response = client.execute(get);
 
                 if (response.getStatusLine().getStatusCode() == 404) {
+                    EntityUtils.consumeQuietly(response.getEntity());
                     return;
                 }
 
                 if (response.getStatusLine().getStatusCode() != 200) {
+                    EntityUtils.consumeQuietly(response.getEntity());
                     throw new RuntimeException(response.getStatusLine().getStatusCode() + " response from " + url + ".");
                 }
 
@@ -657,6 +2376,7 @@ public class ConvertServlet extends HttpServlet {
                 logger.debug(pfx + "    rightsStatement = [" + rightsStatement + "]");
             } finally {
                 get.releaseConnection();
+                upstreamDurations.get("tracksys_metadata").observeSince(started);
             }
         }
     }
@@ -670,10 +2390,16 @@ public class ConvertServlet extends HttpServlet {
         final String url = citationsBaseUrl + queryParams;
 
         HttpGet get = new HttpGet(url);
+        final long started = System.nanoTime();
         try {
             logger.debug(pfx + "[Citation generation] : " + url);
             HttpResponse response = client.execute(get);
-            if (response.getStatusLine().getStatusCode() != 200) {
+            if (response.getStatusLine().getStatusCode() == 404) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                logger.debug(pfx + "    no citation available");
+                return "";
+            } else if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consumeQuietly(response.getEntity());
                 throw new RuntimeException(response.getStatusLine().getStatusCode() + " response from " + url + ".");
             } else {
                 String citation = EntityUtils.toString(response.getEntity());
@@ -682,7 +2408,20 @@ public class ConvertServlet extends HttpServlet {
             }
         } finally {
             get.releaseConnection();
+            upstreamDurations.get("citations").observeSince(started);
+        }
+    }
+
+    /**
+     * Returns the Cache-Control for a wrapped image of the given item: one
+     * restricted to UVA shouldn't be kept by shared caches, which would
+     * serve it to anyone.
+     */
+    private String getCacheControl(SolrDocument doc) {
+        if (doc != null && doc.containsKey("policy_a") && doc.getFirstValue("policy_a").toString().equals("uva")) {
+            return restrictedCacheControl;
         }
+        return publicCacheControl;
     }
 
     private boolean canAccessResource(SolrDocument doc, HttpServletRequest request, final String pfx) {
@@ -706,34 +2445,63 @@ public class ConvertServlet extends HttpServlet {
         }
     }
 
-    private void queryLargeImage(final String pid, final String pfx) throws ClientProtocolException, IOException, RuntimeException {
-        final String url = iiifBaseUrl + pid + "/full/pct:50/0/default.jpg";
-        HttpHead head = new HttpHead(url);
-        try {
-            logger.debug(pfx + "[IIIF query] : " + url);
-            HttpResponse response = client.execute(head);
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new RuntimeException(response.getStatusLine().getStatusCode() + " response from HEAD " + url + ".");
-            }
-        } finally {
-            head.releaseConnection();
-        }
+    private String getLargeImageUrl(final String pid, final String iiifSize) {
+        return iiifBaseUrl + pid + "/full/" + iiifSize + "/0/default.jpg";
+    }
+
+    private String getImageInfoUrl(final String pid) {
+        return iiifBaseUrl + pid + "/info.json";
     }
 
-    private void downloadLargeImage(final String pid, OutputStream out, final String pfx) throws ClientProtocolException, IOException, RuntimeException {
-        final String url = iiifBaseUrl + pid + "/full/pct:50/0/default.jpg";
+    /**
+     * Checks that IIIF has the given image by requesting its info.json, which
+     * unlike a request for the image itself doesn't require IIIF to render a
+     * derivative.  Returns the width and height of the full image, or zeros
+     * if the info.json doesn't give them.
+     */
+    private int[] queryImageInfo(final String pid, final String pfx) throws ClientProtocolException, IOException, RuntimeException {
+        final String url = getImageInfoUrl(pid);
         HttpGet get = new HttpGet(url);
+        final long started = System.nanoTime();
         try {
-            logger.debug(pfx + "[IIIF download] : " + url);
+            logger.debug(pfx + "[IIIF query] : " + url);
             HttpResponse response = client.execute(get);
             if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consumeQuietly(response.getEntity());
                 throw new RuntimeException(response.getStatusLine().getStatusCode() + " response from GET " + url + ".");
-            } else {
-                IOUtils.copy(response.getEntity().getContent(), out);
             }
+            final int[] dimensions = new int[2];
+            try {
+                final Object info = new JSONParser().parse(EntityUtils.toString(response.getEntity()));
+                if (info instanceof JSONObject && ((JSONObject) info).get("width") instanceof Number && ((JSONObject) info).get("height") instanceof Number) {
+                    dimensions[0] = ((Number) ((JSONObject) info).get("width")).intValue();
+                    dimensions[1] = ((Number) ((JSONObject) info).get("height")).intValue();
+                } else {
+                    logger.debug(pfx + "No dimensions in " + url);
+                }
+            } catch (ParseException ex) {
+                logger.debug(pfx + "Unable to parse " + url + ": " + ex);
+            }
+            return dimensions;
         } finally {
             get.releaseConnection();
+            upstreamDurations.get("iiif_info").observeSince(started);
+        }
+    }
+
+    /**
+     * Requests the image, returning the (unread) body if IIIF has it.  The
+     * caller must release the connection once done with it.
+     */
+    private InputStream openLargeImage(final HttpGet get, final String pfx) throws ClientProtocolException, IOException, RuntimeException {
+        final String url = get.getURI().toString();
+        logger.debug(pfx + "[IIIF download] : " + url);
+        HttpResponse response = client.execute(get);
+        if (response.getStatusLine().getStatusCode() != 200) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            throw new RuntimeException(response.getStatusLine().getStatusCode() + " response from GET " + url + ".");
         }
+        return Metrics.counting(response.getEntity().getContent(), imageBytesIn);
     }
 
     /**
@@ -781,67 +2549,29 @@ public class ConvertServlet extends HttpServlet {
         return wrapped.toString().trim();
     }
 
-    public void addUserComment(File jpegin, File jpegout, String comment) throws IOException, ImageReadException, ImageWriteException {
-        OutputStream os = null;
+    /**
+     * Copies the given JPEG, adding the comment to its Exif metadata.
+     */
+    public void addUserComment(File jpegin, File jpegout, String comment) throws IOException {
+        addUserComment(jpegin, jpegout, comment, OutputEncoding.Format.JPEG);
+    }
+
+    /**
+     * Copies the given image, adding the comment to its Exif metadata.
+     */
+    public void addUserComment(File imagein, File imageout, String comment, OutputEncoding.Format format) throws IOException {
+        InputStream is = new FileInputStream(imagein);
         try {
-            TiffOutputSet outputSet = null;
-
-            // note that metadata might be null if no metadata is found.
-            ImageMetadata metadata = Imaging.getMetadata(jpegin);
-            JpegImageMetadata jpegMetadata = (JpegImageMetadata) metadata;
-            if (null != jpegMetadata) {
-                // note that exif might be null if no Exif metadata is found.
-                TiffImageMetadata exif = jpegMetadata.getExif();
-
-                if (null != exif) {
-                    // TiffImageMetadata class is immutable (read-only).
-                    // TiffOutputSet class represents the Exif data to write.
-                    //
-                    // Usually, we want to update existing Exif metadata by
-                    // changing
-                    // the values of a few fields, or adding a field.
-                    // In these cases, it is easiest to use getOutputSet() to
-                    // start with a "copy" of the fields read from the image.
-                    outputSet = exif.getOutputSet();
-                }
-            }
-
-            // if file does not contain any exif metadata, we create an empty
-            // set of exif metadata. Otherwise, we keep all of the other
-            // existing tags.
-            if (null == outputSet) {
-                outputSet = new TiffOutputSet();
-            }
-
-            // Example of how to add a field/tag to the output set.
-            //
-            // Note that you should first remove the field/tag if it already
-            // exists in this directory, or you may end up with duplicate
-            // tags. See above.
-            //
-            // Certain fields/tags are expected in certain Exif directories;
-            // Others can occur in more than one directory (and often have a
-            // different meaning in different directories).
-            //
-            // TagInfo constants often contain a description of what
-            // directories are associated with a given tag.
-            //
-            // see
-            // org.apache.commons.sanselan.formats.tiff.constants.AllTagConstants
-            //
-            final TiffOutputDirectory exifDirectory = outputSet.getOrCreateExifDirectory();
-
-            // make sure to remove old value if present (this method will
-            // not fail if the tag does not exist).
-            exifDirectory.removeField(ExifTagConstants.EXIF_TAG_USER_COMMENT);
-            exifDirectory.add(ExifTagConstants.EXIF_TAG_USER_COMMENT, comment);
-
-            os = new BufferedOutputStream(new FileOutputStream(jpegout));
-            new ExifRewriter().updateExifMetadataLossless(jpegin, os, outputSet);
-        } finally {
-            if (os != null) {
+            OutputStream os = new FileOutputStream(imageout);
+            try {
+                UserCommentOutputStream tagged = UserCommentOutputStream.create(new BufferedOutputStream(os), comment, format);
+                IOUtils.copy(is, tagged);
+                tagged.close();
+            } finally {
                 os.close();
             }
+        } finally {
+            is.close();
         }
     }
 
@@ -0,0 +1,26 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so that the pools used by the servlet are
+ * identifiable in thread dumps and never keep the container from exiting.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    public DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+}
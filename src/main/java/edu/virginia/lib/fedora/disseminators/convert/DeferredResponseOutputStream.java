@@ -0,0 +1,96 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An OutputStream over a servlet response that leaves the status and headers
+ * untouched until the first byte is written.  A streaming pipeline that fails
+ * before producing any output can therefore still answer with an error
+ * status; only once the image has started to flow is the response committed
+ * to a 200.
+ */
+public class DeferredResponseOutputStream extends OutputStream {
+
+    private final HttpServletResponse resp;
+
+    private final String contentType;
+
+    private final String contentDisposition;
+
+    private final CacheHeaders cacheHeaders;
+
+    private OutputStream out;
+
+    private long count = 0;
+
+    /**
+     * @param contentDisposition the Content-Disposition header to send, or
+     *        null for none
+     * @param cacheHeaders the caching headers to send, or null for none;
+     *        like the others, they aren't sent with an error
+     */
+    public DeferredResponseOutputStream(HttpServletResponse resp, String contentType, String contentDisposition, CacheHeaders cacheHeaders) {
+        this.resp = resp;
+        this.contentType = contentType;
+        this.contentDisposition = contentDisposition;
+        this.cacheHeaders = cacheHeaders;
+    }
+
+    /**
+     * Returns true once any output has been written (and so the response
+     * status can no longer be changed).
+     */
+    public boolean isStarted() {
+        return out != null;
+    }
+
+    /**
+     * The number of bytes written.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    private OutputStream start() throws IOException {
+        if (out == null) {
+            if (contentDisposition != null) {
+                resp.setHeader("Content-Disposition", contentDisposition);
+            }
+            if (cacheHeaders != null) {
+                cacheHeaders.apply(resp);
+            }
+            resp.setContentType(contentType);
+            resp.setStatus(HttpServletResponse.SC_OK);
+            out = resp.getOutputStream();
+        }
+        return out;
+    }
+
+    public void write(int b) throws IOException {
+        start().write(b);
+        count ++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > 0) {
+            start().write(b, off, len);
+            count += len;
+        }
+    }
+
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.common.bytesource.ByteSourceArray;
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
+import org.apache.commons.imaging.formats.tiff.TiffImageParser;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.write.TiffImageWriterBase;
+import org.apache.commons.imaging.formats.tiff.write.TiffImageWriterLossless;
+import org.apache.commons.imaging.formats.tiff.write.TiffImageWriterLossy;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputDirectory;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+
+/**
+ * An OutputStream that adds a UserComment to the Exif metadata of the JPEG
+ * written through it, in a single pass.  Only the marker segments preceding
+ * the image data (typically a few kilobytes) are buffered: once the
+ * start-of-scan marker arrives, the APP1/Exif segment is rewritten with the
+ * comment (keeping any other tags), or a new one is inserted after the JFIF
+ * APP0 segment if there was none, and everything after that is copied
+ * straight through.
+ */
+public class ExifCommentOutputStream extends UserCommentOutputStream {
+
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int SOS = 0xDA;
+    private static final int TEM = 0x01;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /**
+     * The most that will be buffered looking for the image data; the marker
+     * segments of any reasonable JPEG are a tiny fraction of this.
+     */
+    private static final int MAX_HEADER_SIZE = 16 * 1024 * 1024;
+
+    private final OutputStream out;
+
+    private final String comment;
+
+    /**
+     * The buffered start of the image, or null once it has been written.
+     */
+    private byte[] buffer = new byte[16 * 1024];
+    private int count = 0;
+
+    /**
+     * The offset of the first segment not yet found in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * The start offset, end offset and marker of each complete segment.
+     */
+    private final List<int[]> segments = new ArrayList<int[]>();
+
+    public ExifCommentOutputStream(OutputStream out, String comment) {
+        this.out = out;
+        this.comment = comment;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (buffer == null) {
+            out.write(b, off, len);
+            return;
+        }
+        if (count + len > buffer.length) {
+            if (count + len > MAX_HEADER_SIZE) {
+                throw new IOException("No JPEG image data in the first " + MAX_HEADER_SIZE + " bytes!");
+            }
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+        readSegments();
+    }
+
+    /**
+     * Finds the complete segments in the buffer, writing out the (amended)
+     * header once the start of scan is reached.
+     */
+    private void readSegments() throws IOException {
+        if (position == 0) {
+            if (count < 2) {
+                return;
+            }
+            if ((buffer[0] & 0xFF) != 0xFF || (buffer[1] & 0xFF) != 0xD8) {
+                throw new IOException("Not a JPEG image!");
+            }
+            position = 2;
+        }
+        while (true) {
+            int i = position;
+            if (i >= count) {
+                return;
+            }
+            if ((buffer[i] & 0xFF) != 0xFF) {
+                throw new IOException("Invalid JPEG marker at offset " + i + "!");
+            }
+            // markers may be preceded by any number of 0xFF fill bytes
+            while (i < count && (buffer[i] & 0xFF) == 0xFF) {
+                i ++;
+            }
+            if (i >= count) {
+                return;
+            }
+            final int marker = buffer[i ++] & 0xFF;
+            int end = i;
+            if (marker != TEM && (marker < 0xD0 || marker > 0xD7)) {
+                if (i + 2 > count) {
+                    return;
+                }
+                final int length = ((buffer[i] & 0xFF) << 8) | (buffer[i + 1] & 0xFF);
+                if (length < 2) {
+                    throw new IOException("Invalid JPEG segment length at offset " + i + "!");
+                }
+                end = i + length;
+                if (end > count) {
+                    return;
+                }
+            }
+            segments.add(new int[] { position, end, marker });
+            position = end;
+            if (marker == SOS) {
+                writeHeader();
+                return;
+            }
+        }
+    }
+
+    private boolean isExif(int[] segment) {
+        if (segment[2] != APP1 || segment[1] - segment[0] < 4 + EXIF_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i ++) {
+            if (buffer[segment[0] + 4 + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        int exifIndex = -1;
+        for (int i = 0; i < segments.size() && exifIndex < 0; i ++) {
+            if (isExif(segments.get(i))) {
+                exifIndex = i;
+            }
+        }
+
+        final byte[] exif;
+        int insertAt = -1;
+        if (exifIndex >= 0) {
+            final int[] segment = segments.get(exifIndex);
+            exif = createExifSegment(Arrays.copyOfRange(buffer, segment[0] + 4 + EXIF_HEADER.length, segment[1]), comment);
+        } else {
+            exif = createExifSegment(null, comment);
+            insertAt = 0;
+            while (segments.get(insertAt)[2] == APP0) {
+                insertAt ++;
+            }
+        }
+
+        // SOI
+        out.write(buffer, 0, 2);
+        for (int i = 0; i < segments.size(); i ++) {
+            final int[] segment = segments.get(i);
+            if (i == insertAt) {
+                out.write(exif);
+            }
+            if (i == exifIndex) {
+                out.write(exif);
+            } else {
+                out.write(buffer, segment[0], segment[1] - segment[0]);
+            }
+        }
+        // whatever image data has already arrived
+        out.write(buffer, position, count - position);
+        buffer = null;
+    }
+
+    /**
+     * Creates an APP1 segment containing the given existing Exif metadata (a
+     * TIFF structure, or null if there was none) with the comment added.
+     */
+    private static byte[] createExifSegment(byte[] existing, String comment) throws IOException {
+        final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        segment.write(new byte[4]);
+        segment.write(EXIF_HEADER);
+        writeExif(segment, existing, comment);
+
+        final byte[] bytes = segment.toByteArray();
+        final int length = bytes.length - 2;
+        if (length > 0xFFFF) {
+            throw new IOException("Exif metadata is too large for an APP1 segment (" + length + " bytes)!");
+        }
+        bytes[0] = (byte) 0xFF;
+        bytes[1] = (byte) APP1;
+        bytes[2] = (byte) (length >> 8);
+        bytes[3] = (byte) length;
+        return bytes;
+    }
+
+    /**
+     * Writes the given existing Exif metadata (a TIFF structure, or null if
+     * there was none) with the comment added.  Package-private for the WebP
+     * equivalent.
+     */
+    static void writeExif(OutputStream out, byte[] existing, String comment) throws IOException {
+        try {
+            TiffOutputSet outputSet = null;
+            if (existing != null) {
+                final TiffImageMetadata metadata = (TiffImageMetadata) new TiffImageParser().getMetadata(new ByteSourceArray(existing), null);
+                if (metadata != null) {
+                    outputSet = metadata.getOutputSet();
+                }
+            }
+            if (outputSet == null) {
+                outputSet = new TiffOutputSet();
+            }
+
+            // remove any existing comment, so that it isn't duplicated
+            final TiffOutputDirectory exifDirectory = outputSet.getOrCreateExifDirectory();
+            exifDirectory.removeField(ExifTagConstants.EXIF_TAG_USER_COMMENT);
+            exifDirectory.add(ExifTagConstants.EXIF_TAG_USER_COMMENT, comment);
+
+            // as with ExifRewriter, rewriting existing metadata "losslessly"
+            // keeps maker notes (which may hold absolute offsets) intact
+            final TiffImageWriterBase writer = existing == null ? new TiffImageWriterLossy(outputSet.byteOrder) : new TiffImageWriterLossless(outputSet.byteOrder, existing);
+            writer.write(out, outputSet);
+        } catch (ImageReadException ex) {
+            throw new IOException("Unable to read existing Exif metadata!", ex);
+        } catch (ImageWriteException ex) {
+            throw new IOException("Unable to write Exif metadata!", ex);
+        }
+    }
+
+    /**
+     * Checks that a complete image header was written and flushes the
+     * underlying stream, without closing it.
+     */
+    public void finish() throws IOException {
+        if (buffer != null) {
+            throw new IOException("Incomplete JPEG image: no image data found!");
+        }
+        out.flush();
+    }
+
+    public void flush() throws IOException {
+        if (buffer == null) {
+            out.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -1,13 +1,20 @@
 package edu.virginia.lib.fedora.disseminators.convert;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,7 +25,7 @@ import org.slf4j.LoggerFactory;
  * the path must be specified in the conf/image-magick.properties
  * file.
  */
-public class ImageMagickProcess {
+public class ImageMagickProcess implements BorderRenderer {
 
     private String convertCommandPath; 
 
@@ -26,11 +33,43 @@ public class ImageMagickProcess {
 
     private String font = "Times-New-Roman";
 
+    private ProcessRunner processRunner = new ProcessRunner();
+
+    public static final int DEFAULT_TEXT_HEIGHT_CACHE_SIZE = 1000;
+
+    /**
+     * How much of a streamed image is kept in memory while looking for its
+     * frame header (anything beyond that is recorded to a temporary file).
+     * The header normally follows within a few kilobytes, but large embedded
+     * profiles or thumbnails can push it further out.
+     */
+    private static final int MAX_HEADER_SIZE = 1024 * 1024;
+
+    /**
+     * The color the border has always been drawn in: "-bordercolor" follows
+     * "-border" in the (original) command for wide images, so it has no
+     * effect and ImageMagick's default border color is used.
+     */
+    static final String BORDER_COLOR = "#DFDFDF";
+
+    /**
+     * Text heights measured by forking "convert", keyed by text, font and
+     * point size.  All pages of an item share the same label, so this saves
+     * one or two processes for every page after the first.
+     */
+    private LruCache<TextHeightKey, Integer> textHeights = new LruCache<TextHeightKey, Integer>(DEFAULT_TEXT_HEIGHT_CACHE_SIZE);
+
+    /**
+     * Where the time spent in each kind of ImageMagick process is recorded, if
+     * anywhere.
+     */
+    private Metrics.Family<Metrics.Histogram> stageDurations;
+
     final Logger logger = LoggerFactory.getLogger(ImageMagickProcess.class);
 
     public static void main(String [] args) throws IOException, InterruptedException {
         ImageMagickProcess p = new ImageMagickProcess();
-        p.addBorder("", new File(args[0]), new File(args[1]), args[2]);
+        p.addBorder("", new File(args[0]), new File(args[1]), args[2], OutputEncoding.DEFAULT);
     }
 
     public ImageMagickProcess() throws IOException {
@@ -51,26 +90,11 @@ public class ImageMagickProcess {
 
 /*
     private void imGenericCommand(String pfx, String ... args) throws IOException, InterruptedException {
-        ProcessBuilder pb = new ProcessBuilder(args);
-        logger.debug(pfx + "Running command : " + pb.command().toString() );
-        Process p = pb.start();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ByteArrayOutputStream baes = new ByteArrayOutputStream();
-
-        Thread out = new Thread(new OutputDrainerThread(p.getInputStream(), baos));
-        out.start();
-        Thread err = new Thread(new OutputDrainerThread(p.getErrorStream(), baes));
-        err.start();
-        int returnCode = p.waitFor();
-        out.join();
-        err.join();
-
-        final String commandOutput = baos.toString("UTF-8");
-        final String commandError = baes.toString("UTF-8");
-
-        logger.debug(pfx + "return code: " + returnCode);
-        logger.debug(pfx + "command out: " + "\n" + commandOutput + "\n");
-        logger.debug(pfx + "command err: " + "\n" + commandError + "\n");
+        ProcessRunner.Result result = processRunner.run(pfx, Arrays.asList(args));
+
+        logger.debug(pfx + "return code: " + result.getExitCode());
+        logger.debug(pfx + "command out: " + "\n" + result.getStdout() + "\n");
+        logger.debug(pfx + "command err: " + "\n" + result.getStderr() + "\n");
     }
 
     private void imDebugInfo(String pfx) throws IOException, InterruptedException {
@@ -87,25 +111,13 @@ public class ImageMagickProcess {
         // determine height of multi-line text given a font at a specific
         // point size by parsing imagemagick debug output
         Pattern pattern = Pattern.compile("^.*Metrics:.* height: (\\d+); .*$", Pattern.MULTILINE);
-        ProcessBuilder pb = new ProcessBuilder(convertCommandPath, "-debug", "annotate", "xc:", "-font", font, "-pointsize", String.valueOf(pointSize), "-annotate", "0", text, "null:");
-        logger.debug(pfx + "Running command : " + pb.command().toString() );
-        Process p = pb.start();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ByteArrayOutputStream baes = new ByteArrayOutputStream();
-
-        Thread out = new Thread(new OutputDrainerThread(p.getInputStream(), baos));
-        out.start();
-        Thread err = new Thread(new OutputDrainerThread(p.getErrorStream(), baes));
-        err.start();
-        int returnCode = p.waitFor();
-        out.join();
-        err.join();
-
-        final String convertOutput = baos.toString("UTF-8");
-        final String convertError = baes.toString("UTF-8");
-
-        if (returnCode != 0) {
-            logger.debug(pfx + "return code: " + returnCode);
+        ProcessRunner.Result result = processRunner.run(pfx, Arrays.asList(convertCommandPath, "-debug", "annotate", "xc:", "-font", font, "-pointsize", String.valueOf(pointSize), "-annotate", "0", text, "null:"));
+
+        final String convertOutput = result.getStdout();
+        final String convertError = result.getStderr();
+
+        if (result.getExitCode() != 0) {
+            logger.debug(pfx + "return code: " + result.getExitCode());
             logger.debug(pfx + "command out: " + "\n" + convertOutput + "\n");
             logger.debug(pfx + "command err: " + "\n" + convertError + "\n");
             throw new RuntimeException("Invalid return code for process!");
@@ -155,25 +167,13 @@ public class ImageMagickProcess {
         // this label should be practically the same height as the annotation
         // created below (just a couple pixels bigger due to top/bottom margins).
         // plus it's a more stable way than parsing debug output, and is faster taboot
-        ProcessBuilder pb = new ProcessBuilder(convertCommandPath, "-font", font, "-pointsize", String.valueOf(pointSize), "label:" + text, "-trim", "-format", "%h", "info:");
-        logger.debug(pfx + "Running command : " + pb.command().toString() );
-        Process p = pb.start();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ByteArrayOutputStream baes = new ByteArrayOutputStream();
-
-        Thread out = new Thread(new OutputDrainerThread(p.getInputStream(), baos));
-        out.start();
-        Thread err = new Thread(new OutputDrainerThread(p.getErrorStream(), baes));
-        err.start();
-        int returnCode = p.waitFor();
-        out.join();
-        err.join();
-
-        final String convertOutput = baos.toString("UTF-8");
-        final String convertError = baes.toString("UTF-8");
-
-        if (returnCode != 0) {
-            logger.debug(pfx + "return code: " + returnCode);
+        ProcessRunner.Result result = processRunner.run(pfx, Arrays.asList(convertCommandPath, "-font", font, "-pointsize", String.valueOf(pointSize), "label:" + text, "-trim", "-format", "%h", "info:"));
+
+        final String convertOutput = result.getStdout();
+        final String convertError = result.getStderr();
+
+        if (result.getExitCode() != 0) {
+            logger.debug(pfx + "return code: " + result.getExitCode());
             logger.debug(pfx + "command out: " + "\n" + convertOutput + "\n");
             logger.debug(pfx + "command err: " + "\n" + convertError + "\n");
             throw new RuntimeException("Invalid return code for process!");
@@ -190,102 +190,288 @@ public class ImageMagickProcess {
         return height;
     }
 
-    private int getTextHeightForTextWithFontAtPointSize(String pfx, String text, String font, int pointSize) throws IOException, InterruptedException {
+    /**
+     * Package-private for the benchmarks.
+     */
+    int getTextHeightForTextWithFontAtPointSize(String pfx, String text, String font, int pointSize) throws IOException, InterruptedException {
+        final TextHeightKey key = new TextHeightKey(text, font, pointSize);
+        final Integer cached = textHeights.get(key);
+        if (cached != null) {
+            logger.debug(pfx + "using cached text height " + cached);
+            return cached;
+        }
+
+        int height;
+        final long started = System.nanoTime();
         try {
-            return getTextHeightForTextWithFontAtPointSizeViaLabel(pfx, text, font, pointSize);
+            height = getTextHeightForTextWithFontAtPointSizeViaLabel(pfx, text, font, pointSize);
         } catch (Exception ex) {
             logger.error(pfx + "Exception determining text height:", ex);
             logger.warn(pfx + "falling back to font metrics debug output parsing");
+            height = getTextHeightForTextWithFontAtPointSizeViaFontMetrics(pfx, text, font, pointSize);
+        } finally {
+            recordStage("text_height", started);
         }
 
-        return getTextHeightForTextWithFontAtPointSizeViaFontMetrics(pfx, text, font, pointSize);
+        textHeights.put(key, height);
+        return height;
     }
 
-    public void addBorder(String pfx, File inputJpg, File outputJpg, String label) throws IOException, InterruptedException {
-		//imDebugInfo(pfx);
+    /**
+     * Replaces the text height cache with an empty one of the given size
+     * (zero disables caching).
+     */
+    public void setTextHeightCacheSize(int size) {
+        textHeights = new LruCache<TextHeightKey, Integer>(size);
+    }
 
-        // determine size
+    public LruCache<?, ?> getTextHeightCache() {
+        return textHeights;
+    }
+
+    /**
+     * Replaces the runner (and so the I/O thread pool) used for the
+     * ImageMagick processes.
+     */
+    public void setProcessRunner(ProcessRunner processRunner) {
+        this.processRunner.shutdown();
+        this.processRunner = processRunner;
+    }
+
+    public ProcessRunner getProcessRunner() {
+        return processRunner;
+    }
+
+    /**
+     * Records the duration of the "identify", "text_height" and "convert"
+     * processes in the given histograms, labelled by stage.
+     */
+    public void setStageDurations(Metrics.Family<Metrics.Histogram> stageDurations) {
+        this.stageDurations = stageDurations;
+    }
+
+    private void recordStage(String stage, long startNanos) {
+        if (stageDurations != null) {
+            stageDurations.get(stage).observeSince(startNanos);
+        }
+    }
+
+    private static final class TextHeightKey {
+        private final String text;
+        private final String font;
+        private final int pointSize;
+
+        TextHeightKey(String text, String font, int pointSize) {
+            this.text = text;
+            this.font = font;
+            this.pointSize = pointSize;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof TextHeightKey)) {
+                return false;
+            }
+            final TextHeightKey k = (TextHeightKey) o;
+            return pointSize == k.pointSize && text.equals(k.text) && font.equals(k.font);
+        }
+
+        public int hashCode() {
+            return (text.hashCode() * 31 + font.hashCode()) * 31 + pointSize;
+        }
+    }
+
+    /**
+     * Determines the dimensions of the given JPEG by reading its frame header,
+     * only falling back to forking "identify" for files that can't be parsed
+     * that way.  Package-private for the benchmarks.
+     */
+    JpegDimensions getImageDimensions(String pfx, File inputJpg) throws IOException, InterruptedException {
+        try {
+            final JpegDimensions dimensions = JpegDimensions.read(inputJpg);
+            if (dimensions != null) {
+                logger.debug(pfx + "read dimensions " + dimensions + " from JPEG header");
+                return dimensions;
+            }
+            logger.debug(pfx + "no usable frame header found; falling back to identify");
+        } catch (IOException ex) {
+            logger.warn(pfx + "Exception reading JPEG header; falling back to identify", ex);
+        }
+
+        return getImageDimensionsViaIdentify(pfx, inputJpg);
+    }
+
+    private JpegDimensions getImageDimensionsViaIdentify(String pfx, File inputJpg) throws IOException, InterruptedException {
         Pattern pattern = Pattern.compile("^.* JPEG (\\d+)x(\\d+) .*\\n$");
-        ProcessBuilder pb = new ProcessBuilder(identifyCommandPath, inputJpg.getAbsolutePath());
-        logger.debug(pfx + "Running command : " + pb.command().toString() );
-        Process p = pb.start();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Thread one = new Thread(new OutputDrainerThread(p.getInputStream(), baos));
-        one.start();
-        new Thread(new OutputDrainerThread(p.getErrorStream())).start();
-        int returnCode = p.waitFor();
-        one.join();
-        final String identifyOutput = baos.toString("UTF-8");
-
-        if (returnCode != 0) {
-            logger.debug(pfx + "return code: " + returnCode);
+        final long started = System.nanoTime();
+        ProcessRunner.Result result = processRunner.run(pfx, Arrays.asList(identifyCommandPath, inputJpg.getAbsolutePath()));
+        recordStage("identify", started);
+        final String identifyOutput = result.getStdout();
+
+        if (result.getExitCode() != 0) {
+            logger.debug(pfx + "return code: " + result.getExitCode());
             logger.debug(pfx + "command out: " + "\n" + identifyOutput + "\n");
             throw new RuntimeException("Invalid return code for process!");
         }
         Matcher m = pattern.matcher(identifyOutput);
         if (m.matches()) {
-            label = label.trim();
-            int linesOfText = label.split("\\n").length;
-            int width = Integer.parseInt(m.group(1));
-            int height = Integer.parseInt(m.group(2));
-            label = label + "\n";
-
-            logger.debug(pfx + "width: " + width);
-            logger.debug(pfx + "height: " + height);
-
-            int pointSize = (int) ((float) (width>height ? width : height) * 0.02f);
-            logger.debug(pfx + "point size: " + pointSize);
-            int textBoxHeight = getTextHeightForTextWithFontAtPointSize(pfx, label, font, pointSize) + (pointSize * 2);
-            logger.debug(pfx + "text box height: " + textBoxHeight);
-
-            if ((width * 1.5) > height) {
-                if (height > width) {
-                    pointSize = Math.round((float) pointSize / ((float) height / (float) width));
-                    logger.debug(pfx + "point size: " + pointSize);
-                    textBoxHeight = getTextHeightForTextWithFontAtPointSize(pfx, label, font, pointSize) + (pointSize * 2);
-                    logger.debug(pfx + "text box height: " + textBoxHeight);
-                }
-                pb = new ProcessBuilder(convertCommandPath, inputJpg.getAbsolutePath(),
-                        "-border", (pointSize * 2) + "x" + textBoxHeight, 
-                        "-bordercolor", "lightgray", 
-                        "-font", font, "-pointsize", String.valueOf(pointSize), 
-                        "-gravity", "south", 
-                        "-annotate", "+0+0+5+5", label,
-                        "-crop", (width + (pointSize * 2)) +"x" + (height + textBoxHeight + pointSize) + "+0+0", outputJpg.getAbsolutePath());
-                logger.debug(pfx + "Running command : " + pb.command().toString() );
-                p = pb.start();
-            } else {
-                pb = new ProcessBuilder(convertCommandPath, inputJpg.getAbsolutePath(),
-                        "-rotate", "90",
-                        "-border", (pointSize * 2) + "x" + textBoxHeight, 
-                        "-bordercolor", "lightgray", 
-                        "-font", font, "-pointsize", String.valueOf(pointSize), 
-                        "-gravity", "south", 
-                        "-annotate", "+0+0+5+5", label,
-                        "-crop", (height + (pointSize * 2)) +"x" + (width + textBoxHeight + pointSize) + "+0+0", 
-                        "-rotate", "-90",
-                        outputJpg.getAbsolutePath());
-                logger.debug(pfx + "Running command : " + pb.command().toString() );
-                p = pb.start();
-            }
-            baos = new ByteArrayOutputStream();
-            Thread out = new Thread(new OutputDrainerThread(p.getInputStream(), baos));
-            out.start();
-            Thread err = new Thread(new OutputDrainerThread(p.getErrorStream(), baos));
-            err.start();
-            returnCode = p.waitFor();
-            out.join();
-            err.join();
-
-            if (returnCode != 0) {
-                logger.debug(pfx + "return code: " + returnCode);
-                logger.debug(pfx + "command out: " + "\n" + baos.toString("UTF-8") + "\n");
-                throw new RuntimeException("Invalid return code for process! (" + returnCode + ", " + baos.toString("UTF-8") + ")");
-            }
+            return new JpegDimensions(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
         } else {
             File copy = File.createTempFile("problematic-file", ".jpg");
             FileUtils.copyFile(inputJpg, copy);
             throw new RuntimeException("Unable to parse image dimensions from ImageMagick identify output: \"" + identifyOutput + "\" (problematic file copied to " + copy.getAbsolutePath() + ")");
         }
     }
+
+    public void addBorder(String pfx, File inputJpg, File output, String label, OutputEncoding encoding) throws IOException, InterruptedException {
+		//imDebugInfo(pfx);
+
+        // determine size
+        final JpegDimensions dimensions = getImageDimensions(pfx, inputJpg);
+
+        final List<String> command = getBorderCommand(pfx, inputJpg.getAbsolutePath(), encoding.getFormat().getExtension() + ":" + output.getAbsolutePath(), dimensions, label, encoding);
+        final long started = System.nanoTime();
+        try {
+            checkConvertResult(pfx, processRunner.run(pfx, command));
+        } finally {
+            recordStage("convert", started);
+        }
+    }
+
+    /**
+     * Pipes the image through "convert" (reading the dimensions from the
+     * recorded start of the stream, which is then replayed).  Only an image
+     * whose dimensions can't be read that way is spooled to a file, for
+     * "identify".
+     */
+    public void addBorder(String pfx, InputStream inputJpg, OutputStream output, String label, OutputEncoding encoding) throws IOException, InterruptedException {
+        final RecordingInputStream header = new RecordingInputStream(new BufferedInputStream(inputJpg), MAX_HEADER_SIZE);
+        try {
+            JpegDimensions dimensions = null;
+            try {
+                dimensions = JpegDimensions.read(header);
+            } catch (IOException ex) {
+                logger.warn(pfx + "Exception reading JPEG header; falling back to identify", ex);
+            }
+            if (header.isSpooled()) {
+                logger.debug(pfx + "JPEG header scan read past " + MAX_HEADER_SIZE + " bytes; recorded the rest to a file");
+            }
+            final InputStream in = header.replay();
+
+            if (dimensions != null) {
+                logger.debug(pfx + "read dimensions " + dimensions + " from JPEG header");
+                final List<String> command = getBorderCommand(pfx, "jpg:-", encoding.getFormat().getExtension() + ":-", dimensions, label, encoding);
+                final long started = System.nanoTime();
+                try {
+                    checkConvertResult(pfx, processRunner.run(pfx, command, in, output));
+                } finally {
+                    recordStage("convert", started);
+                }
+                return;
+            }
+
+            logger.debug(pfx + "no usable frame header found; spooling image for identify");
+            final File spooled = File.createTempFile("spooled-", ".jpg");
+            try {
+                final OutputStream out = new FileOutputStream(spooled);
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    out.close();
+                }
+                final List<String> command = getBorderCommand(pfx, spooled.getAbsolutePath(), encoding.getFormat().getExtension() + ":-", getImageDimensionsViaIdentify(pfx, spooled), label, encoding);
+                final long started = System.nanoTime();
+                try {
+                    checkConvertResult(pfx, processRunner.run(pfx, command, null, output));
+                } finally {
+                    recordStage("convert", started);
+                }
+            } finally {
+                spooled.delete();
+            }
+        } finally {
+            header.delete();
+        }
+    }
+
+    private void checkConvertResult(String pfx, ProcessRunner.Result result) {
+        if (result.getExitCode() != 0) {
+            final String output = result.getStdout() + result.getStderr();
+            logger.debug(pfx + "return code: " + result.getExitCode());
+            logger.debug(pfx + "command out: " + "\n" + output + "\n");
+            throw new RuntimeException("Invalid return code for process! (" + result.getExitCode() + ", " + output + ")");
+        }
+    }
+
+    private List<String> getBorderCommand(String pfx, String input, String output, JpegDimensions dimensions, String label, OutputEncoding encoding) throws IOException, InterruptedException {
+        label = label.trim();
+        int width = dimensions.getWidth();
+        int height = dimensions.getHeight();
+        label = label + "\n";
+
+        final BorderGeometry geometry = BorderGeometry.compute(pfx, width, height, label, new BorderGeometry.TextHeightMeasurer() {
+            public int getTextHeight(String pfx, String text, int pointSize) throws IOException, InterruptedException {
+                return getTextHeightForTextWithFontAtPointSize(pfx, text, font, pointSize);
+            }
+        });
+        final int pointSize = geometry.getPointSize();
+        final int textBoxHeight = geometry.getTextBoxHeight();
+
+        final List<String> command = new ArrayList<String>();
+        if (!geometry.isRotated()) {
+            command.addAll(Arrays.asList(convertCommandPath, input,
+                    "-border", (pointSize * 2) + "x" + textBoxHeight, 
+                    "-bordercolor", "lightgray", 
+                    "-font", font, "-pointsize", String.valueOf(pointSize), 
+                    "-gravity", "south", 
+                    "-annotate", "+0+0+5+5", label,
+                    "-crop", (width + (pointSize * 2)) +"x" + (height + textBoxHeight + pointSize) + "+0+0"));
+        } else {
+            // the same layout as rotating the image 90 degrees, bordering it
+            // as above and rotating it back, but only the label strip is
+            // rotated: the image gets a plain border on three sides and the
+            // strip (annotated exactly as the bottom of the rotated image
+            // would be) is appended on the right
+            command.addAll(Arrays.asList(convertCommandPath, input,
+                    "-bordercolor", BORDER_COLOR,
+                    "-border", pointSize + "x" + pointSize,
+                    "-crop", (width + pointSize) + "x" + (height + (pointSize * 2)) + "+0+0", "+repage",
+                    "(", "-size", (height + (pointSize * 2)) + "x" + textBoxHeight, "xc:" + BORDER_COLOR,
+                        "-font", font, "-pointsize", String.valueOf(pointSize),
+                        "-gravity", "south",
+                        "-annotate", "+0+0+5+5", label,
+                        "-rotate", "-90", ")",
+                    "+append"));
+        }
+        command.addAll(getEncodingArguments(encoding));
+        command.add(output);
+        return command;
+    }
+
+    /**
+     * The "convert" settings for the given encoding, which apply to the
+     * output as they precede it.  Unset settings are left to ImageMagick,
+     * which by default keeps the metadata and (for a JPEG) the estimated
+     * quality of the input.
+     */
+    private static List<String> getEncodingArguments(OutputEncoding encoding) {
+        final List<String> arguments = new ArrayList<String>();
+        if (encoding.isStripMetadata()) {
+            arguments.add("-strip");
+        }
+        if (encoding.getQuality() > 0) {
+            arguments.add("-quality");
+            arguments.add(String.valueOf(encoding.getQuality()));
+        }
+        if (encoding.getFormat() == OutputEncoding.Format.JPEG) {
+            if (encoding.isProgressive()) {
+                arguments.add("-interlace");
+                arguments.add("JPEG");
+            }
+            if (encoding.getSampling() != null) {
+                arguments.add("-sampling-factor");
+                arguments.add(encoding.getSampling());
+            }
+        }
+        return arguments;
+    }
 }
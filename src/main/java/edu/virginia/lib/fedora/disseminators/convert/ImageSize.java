@@ -0,0 +1,142 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+/**
+ * The size at which the IIIF image is requested (and so wrapped), as given
+ * by the "size" parameter: either a percentage of the full image ("pct:25")
+ * or a box that the image is scaled to fit ("800" for 800x800, or
+ * "800,600").  Requests beyond the policy limits are clamped to them, so
+ * that no parameter yields more of the image than the default does: a box
+ * is also limited to the largest percentage of the full image, once its
+ * dimensions are known (see getIiifSize(int, int)).  The border, point size
+ * and label box follow from the dimensions of whatever image comes back.
+ *
+ * Sizes that clamp to the same thing are equal, and toString() (the
+ * requested IIIF size) distinguishes the variants of a page in caches.
+ */
+public class ImageSize {
+
+    /**
+     * The largest percentage of the full image that may be requested, which
+     * is also the size used when none is given.
+     */
+    public static final int DEFAULT_MAX_PERCENT = 50;
+
+    /**
+     * The largest box that may be requested, in pixels on a side.
+     */
+    public static final int DEFAULT_MAX_DIMENSION = 1000;
+
+    /**
+     * The smallest box that may be requested; anything smaller leaves no
+     * room for a legible label.
+     */
+    static final int MIN_DIMENSION = 100;
+
+    /**
+     * The smallest percentage that may be requested, for the same reason.
+     */
+    static final int MIN_PERCENT = 5;
+
+    private final String iiifSize;
+
+    private final int maxPercent;
+
+    /**
+     * The box, or 0 for a percentage.
+     */
+    private final int width;
+    private final int height;
+
+    private ImageSize(String iiifSize, int maxPercent, int width, int height) {
+        this.iiifSize = iiifSize;
+        this.maxPercent = maxPercent;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Parses the value of a "size" parameter (null or empty for the
+     * default), throwing IllegalArgumentException if it is malformed.
+     */
+    public static ImageSize parse(String value, int maxPercent, int maxDimension) {
+        if (value == null || value.trim().equals("")) {
+            return new ImageSize("pct:" + maxPercent, maxPercent, 0, 0);
+        }
+        value = value.trim();
+        if (value.startsWith("pct:")) {
+            final int percent = parsePositive(value.substring(4), value);
+            return new ImageSize("pct:" + Math.min(Math.max(percent, MIN_PERCENT), maxPercent), maxPercent, 0, 0);
+        }
+        final String[] parts = value.split(",", -1);
+        if (parts.length > 2) {
+            throw new IllegalArgumentException("Invalid size: " + value);
+        }
+        final int width = clamp(parsePositive(parts[0], value), maxDimension);
+        final int height = parts.length == 1 ? width : clamp(parsePositive(parts[1], value), maxDimension);
+        return new ImageSize("!" + width + "," + height, maxPercent, width, height);
+    }
+
+    private static int parsePositive(String number, String value) {
+        try {
+            final int n = Integer.parseInt(number.trim());
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException ex) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid size: " + value);
+    }
+
+    private static int clamp(int dimension, int maxDimension) {
+        return Math.min(Math.max(dimension, MIN_DIMENSION), maxDimension);
+    }
+
+    /**
+     * Returns true if this is a box, which can only be requested once the
+     * dimensions of the full image are known.
+     */
+    public boolean isBox() {
+        return width > 0;
+    }
+
+    /**
+     * The size as requested, which for a box may be more than the largest
+     * percentage of a small image.
+     */
+    public String getIiifSize() {
+        return iiifSize;
+    }
+
+    /**
+     * The size segment of a IIIF image request for an image of the given
+     * full dimensions (or 0 if they are unknown).  A box is shrunk to no
+     * more than the largest percentage of the image in either direction (so
+     * that the image is never scaled up beyond that), or if the dimensions
+     * are unknown, the largest percentage is requested instead.
+     */
+    public String getIiifSize(int fullWidth, int fullHeight) {
+        if (!isBox()) {
+            return iiifSize;
+        }
+        if (fullWidth <= 0 || fullHeight <= 0) {
+            return "pct:" + maxPercent;
+        }
+        final int boxWidth = (int) Math.min(width, Math.max(1, (long) fullWidth * maxPercent / 100));
+        final int boxHeight = (int) Math.min(height, Math.max(1, (long) fullHeight * maxPercent / 100));
+        return "!" + boxWidth + "," + boxHeight;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof ImageSize && ((ImageSize) o).iiifSize.equals(iiifSize);
+    }
+
+    public int hashCode() {
+        return iiifSize.hashCode();
+    }
+
+    public String toString() {
+        return iiifSize;
+    }
+
+}
@@ -0,0 +1,88 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * A pooling connection manager that records how long requests wait to lease
+ * a connection, so that the pool can be sized from what it reports.  A pool
+ * that is too small shows up as a growing average (or maximum) wait and as
+ * pending requests, rather than as slow upstream services.
+ */
+public class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong leaseWaitNanos = new AtomicLong();
+    private final AtomicLong maxLeaseWaitNanos = new AtomicLong();
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+
+    public InstrumentedConnectionManager() {
+        super();
+    }
+
+    public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        final ConnectionRequest request = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+            public HttpClientConnection get(long timeout, TimeUnit tunit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                final long start = System.nanoTime();
+                try {
+                    final HttpClientConnection conn = request.get(timeout, tunit);
+                    recordLease(System.nanoTime() - start);
+                    return conn;
+                } catch (ConnectionPoolTimeoutException ex) {
+                    leaseTimeouts.incrementAndGet();
+                    throw ex;
+                }
+            }
+
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    private void recordLease(long nanos) {
+        leases.incrementAndGet();
+        leaseWaitNanos.addAndGet(nanos);
+        long max = maxLeaseWaitNanos.get();
+        while (nanos > max && !maxLeaseWaitNanos.compareAndSet(max, nanos)) {
+            max = maxLeaseWaitNanos.get();
+        }
+    }
+
+    public long getLeases() {
+        return leases.get();
+    }
+
+    public long getLeaseTimeouts() {
+        return leaseTimeouts.get();
+    }
+
+    /**
+     * The number of requests currently waiting to lease a connection.
+     */
+    public int getPending() {
+        return getTotalStats().getPending();
+    }
+
+    /**
+     * A one-line summary of the pool utilization and lease waits suitable
+     * for logging.
+     */
+    public String getStats() {
+        final PoolStats total = getTotalStats();
+        final long count = leases.get();
+        return "leased=" + total.getLeased() + " available=" + total.getAvailable() + " pending=" + total.getPending() + " max=" + total.getMax()
+                + " leases=" + count + " avgWaitMs=" + (count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(leaseWaitNanos.get() / count))
+                + " maxWaitMs=" + TimeUnit.NANOSECONDS.toMillis(maxLeaseWaitNanos.get()) + " timeouts=" + leaseTimeouts.get();
+    }
+
+}
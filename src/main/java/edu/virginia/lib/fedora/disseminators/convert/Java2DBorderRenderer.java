@@ -0,0 +1,221 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.NodeList;
+
+/**
+ * A pure-java alternative to {@link ImageMagickProcess} that decodes the image,
+ * draws the border and label with Java2D and encodes the result without
+ * forking any external processes.  The layout mirrors the ImageMagick
+ * "convert" invocation: a light gray border one point size wide, with the
+ * label centered in a text box along the bottom (or along the right side,
+ * reading bottom to top, for tall images).
+ */
+public class Java2DBorderRenderer implements BorderRenderer {
+
+    /**
+     * ImageMagick's default border color (#DFDFDF), which is what it draws:
+     * see {@link ImageMagickProcess#BORDER_COLOR}.
+     */
+    static final Color BORDER_COLOR = new Color(223, 223, 223);
+
+    /**
+     * The offset of the label from the edge of the image, matching the
+     * "-annotate +0+0+5+5" used with ImageMagick.
+     */
+    private static final int TEXT_OFFSET = 5;
+
+    /**
+     * The quality ImageMagick uses when the input quality can't be determined.
+     */
+    private static final float JPEG_QUALITY = 0.92f;
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private String font = "Times New Roman";
+
+    final Logger logger = LoggerFactory.getLogger(Java2DBorderRenderer.class);
+
+    public void addBorder(String pfx, File inputJpg, File output, String label, OutputEncoding encoding) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(inputJpg));
+        try {
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+            try {
+                addBorder(pfx, in, out, label, encoding);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Only JPEG output is supported; the JDK has no WebP encoder.  Metadata
+     * is never carried over from the input.
+     */
+    public void addBorder(String pfx, InputStream inputJpg, OutputStream output, String label, OutputEncoding encoding) throws IOException {
+        if (encoding.getFormat() != OutputEncoding.Format.JPEG) {
+            throw new IOException("The java2d renderer can't write " + encoding.getFormat() + " images!");
+        }
+        // ImageIO.read(InputStream) would, by default, spool it to a file;
+        // this closes the ImageInputStream, but not the underlying stream
+        final BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(inputJpg));
+        if (image == null) {
+            throw new RuntimeException("Unable to decode image");
+        }
+
+        label = label.trim() + "\n";
+
+        final BorderGeometry geometry;
+        try {
+            geometry = BorderGeometry.compute(pfx, image.getWidth(), image.getHeight(), label, new BorderGeometry.TextHeightMeasurer() {
+                public int getTextHeight(String pfx, String text, int pointSize) {
+                    return getTextHeightForTextAtPointSize(pfx, text, pointSize);
+                }
+            });
+        } catch (InterruptedException ex) {
+            // not possible, as nothing here waits
+            throw new RuntimeException(ex);
+        }
+
+        final int outputWidth = geometry.getOutputWidth();
+        final int outputHeight = geometry.getOutputHeight();
+        logger.debug(pfx + "rendering " + outputWidth + "x" + outputHeight + " image" + (geometry.isRotated() ? " with rotated label" : ""));
+
+        final BufferedImage framed = new BufferedImage(outputWidth, outputHeight, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = framed.createGraphics();
+        try {
+            g.setColor(BORDER_COLOR);
+            g.fillRect(0, 0, outputWidth, outputHeight);
+            g.drawImage(image, geometry.getPointSize(), geometry.getPointSize(), null);
+
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g.setFont(getFont(geometry.getPointSize()));
+            g.setColor(Color.BLACK);
+
+            if (geometry.isRotated()) {
+                // lay the label out exactly as for a wide image, but in a
+                // coordinate space rotated 90 degrees counter-clockwise (as
+                // ImageMagick's "-rotate -90"), so that the text reads from
+                // bottom to top and its bottom faces the right edge
+                g.translate(0, outputHeight);
+                g.rotate(-Math.PI / 2);
+                drawLabel(g, label, outputHeight, outputWidth);
+            } else {
+                drawLabel(g, label, outputWidth, outputHeight);
+            }
+        } finally {
+            g.dispose();
+        }
+
+        writeJpeg(framed, output, encoding);
+    }
+
+    /**
+     * Draws each line of the label centered horizontally with the last line
+     * (which, like the ImageMagick annotation, is the empty line following
+     * the trailing newline) ending TEXT_OFFSET pixels above the bottom.
+     */
+    private void drawLabel(Graphics2D g, String label, int width, int height) {
+        final FontMetrics fm = g.getFontMetrics();
+        final String[] lines = label.split("\n", -1);
+        int baseline = height - TEXT_OFFSET - fm.getDescent();
+        for (int i = lines.length - 1; i >= 0; i --) {
+            final int lineWidth = fm.stringWidth(lines[i]);
+            g.drawString(lines[i], (width - lineWidth) / 2, baseline);
+            baseline -= fm.getHeight();
+        }
+    }
+
+    /**
+     * Package-private for the benchmarks.
+     */
+    int getTextHeightForTextAtPointSize(String pfx, String text, int pointSize) {
+        final BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = scratch.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            final FontMetrics fm = g.getFontMetrics(getFont(pointSize));
+            final int height = text.trim().split("\n").length * fm.getHeight();
+            logger.debug(pfx + "determined text height " + height + " via java2d font metrics");
+            return height;
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private Font getFont(int pointSize) {
+        return new Font(font, Font.PLAIN, pointSize);
+    }
+
+    private void writeJpeg(BufferedImage image, OutputStream os, OutputEncoding encoding) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new RuntimeException("No JPEG ImageWriter available!");
+        }
+        final ImageWriter writer = writers.next();
+        try {
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(encoding.getQuality() > 0 ? encoding.getQuality() / 100f : JPEG_QUALITY);
+            if (encoding.isProgressive()) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+
+            IIOMetadata metadata = null;
+            if (encoding.getSampling() != null) {
+                // the sampling factors are only exposed through the native
+                // metadata, in which the luma component comes first
+                metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+                final IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+                final NodeList components = tree.getElementsByTagName("componentSpec");
+                final int[] factors = encoding.getLumaSamplingFactors();
+                for (int i = 0; i < components.getLength(); i ++) {
+                    final IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+                    component.setAttribute("HsamplingFactor", String.valueOf(i == 0 ? factors[0] : 1));
+                    component.setAttribute("VsamplingFactor", String.valueOf(i == 0 ? factors[1] : 1));
+                }
+                metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+            }
+
+            final ImageOutputStream ios = new MemoryCacheImageOutputStream(os);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+            // flushes to, but doesn't close, the underlying stream
+            ios.close();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+}
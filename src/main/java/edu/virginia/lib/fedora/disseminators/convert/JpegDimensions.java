@@ -0,0 +1,120 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The pixel dimensions of a JPEG image, as read from its start-of-frame
+ * (SOFn) segment.  Only the markers up to and including that segment are
+ * read, which for a typical file is well under the first few kilobytes.
+ */
+public class JpegDimensions {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int TEM = 0x01;
+    private static final int DHT = 0xC4;
+    private static final int JPG = 0xC8;
+    private static final int DAC = 0xCC;
+
+    private final int width;
+    private final int height;
+
+    public JpegDimensions(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String toString() {
+        return width + "x" + height;
+    }
+
+    public static JpegDimensions read(File jpeg) throws IOException {
+        final InputStream is = new FileInputStream(jpeg);
+        try {
+            return read(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads the dimensions from the frame header at the start of the given
+     * stream.  Returns null if the stream is not a JPEG or if no usable
+     * frame header precedes the image data (for instance when the height is
+     * deferred to a DNL segment), in which case the caller must determine
+     * the dimensions some other way.  Streams that support mark/reset are
+     * read directly, so that the caller can rewind them afterwards.
+     */
+    public static JpegDimensions read(InputStream is) throws IOException {
+        final DataInputStream in = new DataInputStream(is.markSupported() ? is : new BufferedInputStream(is, 4096));
+        try {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != SOI) {
+                return null;
+            }
+            while (true) {
+                // markers may be preceded by any number of 0xFF fill bytes
+                int marker = in.readUnsignedByte();
+                if (marker != 0xFF) {
+                    return null;
+                }
+                while (marker == 0xFF) {
+                    marker = in.readUnsignedByte();
+                }
+
+                if (marker == TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+                    // standalone markers with no length
+                    continue;
+                }
+                if (marker == SOS || marker == EOI || marker == SOI) {
+                    return null;
+                }
+
+                final int length = in.readUnsignedShort();
+                if (length < 2) {
+                    return null;
+                }
+                if (marker >= 0xC0 && marker <= 0xCF && marker != DHT && marker != JPG && marker != DAC) {
+                    in.readUnsignedByte(); // sample precision
+                    final int height = in.readUnsignedShort();
+                    final int width = in.readUnsignedShort();
+                    if (width == 0 || height == 0) {
+                        return null;
+                    }
+                    return new JpegDimensions(width, height);
+                }
+                skipFully(in, length - 2);
+            }
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            final int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                // skipBytes() doesn't distinguish the end of the stream
+                in.readUnsignedByte();
+                count --;
+            } else {
+                count -= skipped;
+            }
+        }
+    }
+
+}
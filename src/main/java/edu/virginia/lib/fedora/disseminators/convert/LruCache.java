@@ -0,0 +1,97 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small thread-safe, size-bounded cache that evicts the least recently
+ * used entry once it holds more than its capacity.  Hits, misses and
+ * evictions are counted so that the effectiveness of the cache can be
+ * reported.
+ */
+public class LruCache<K, V> {
+
+    private final int capacity;
+
+    private final LinkedHashMap<K, V> map;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public LruCache(final int capacity) {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > LruCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value for the given key (marking it as recently
+     * used) or null if there is none.
+     */
+    public V get(K key) {
+        final V value;
+        synchronized (map) {
+            value = map.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (capacity <= 0) {
+            return;
+        }
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+
+    public void remove(K key) {
+        synchronized (map) {
+            map.remove(key);
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * A one-line summary of the cache size and counters suitable for logging.
+     */
+    public String getStats() {
+        return "size=" + size() + "/" + capacity + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+    }
+
+}
@@ -0,0 +1,279 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms, written in the Prometheus text
+ * exposition format.  Recording is lock-free (a lookup in a concurrent map and
+ * a couple of LongAdder increments) so that it can stay on in production.
+ *
+ * Metrics come in families sharing a name and label names; the metric for a
+ * given set of label values is created when first used.
+ */
+public class Metrics {
+
+    /**
+     * The upper bounds, in seconds, of the latency histogram buckets.
+     */
+    static final double[] LATENCY_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    /**
+     * A value sampled when the metrics are written.
+     */
+    public interface Gauge {
+        double get();
+    }
+
+    private final List<Family<?>> families = Collections.synchronizedList(new ArrayList<Family<?>>());
+
+    public Family<Histogram> histograms(String name, String help, String ... labelNames) {
+        return register(new Family<Histogram>(name, help, "histogram", labelNames) {
+            Histogram create() {
+                return new Histogram();
+            }
+        });
+    }
+
+    public Family<Counter> counters(String name, String help, String ... labelNames) {
+        return register(new Family<Counter>(name, help, "counter", labelNames) {
+            Counter create() {
+                return new Counter();
+            }
+        });
+    }
+
+    public void gauge(String name, String help, final Gauge gauge) {
+        register(new Family<GaugeMetric>(name, help, "gauge") {
+            GaugeMetric create() {
+                return new GaugeMetric(gauge);
+            }
+        }).get();
+    }
+
+    /**
+     * Registers a counter whose value is kept elsewhere and sampled (like a
+     * gauge) when the metrics are written.
+     */
+    public void sampledCounter(String name, String help, final Gauge gauge) {
+        register(new Family<GaugeMetric>(name, help, "counter") {
+            GaugeMetric create() {
+                return new GaugeMetric(gauge);
+            }
+        }).get();
+    }
+
+    private <T extends Family<?>> T register(T family) {
+        families.add(family);
+        return family;
+    }
+
+    /**
+     * Writes every metric in the text exposition format.
+     */
+    public void write(PrintWriter out) {
+        final List<Family<?>> snapshot;
+        synchronized (families) {
+            snapshot = new ArrayList<Family<?>>(families);
+        }
+        for (Family<?> family : snapshot) {
+            family.write(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Wraps the given stream so that the bytes read from it are added to the
+     * counter.
+     */
+    public static InputStream counting(InputStream in, final Counter counter) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    counter.add(1);
+                }
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0) {
+                    counter.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * The metrics sharing a name, one for each set of label values.
+     */
+    public abstract static class Family<T extends Metric> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+
+        private final ConcurrentMap<String, T> metrics = new ConcurrentHashMap<String, T>();
+
+        Family(String name, String help, String type, String ... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        abstract T create();
+
+        /**
+         * Returns the metric for the given label values (one for each label
+         * name), creating it if need be.
+         */
+        public T get(String ... labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " has " + labelNames.length + " labels, not " + labelValues.length);
+            }
+            final String labels = formatLabels(labelValues);
+            T metric = metrics.get(labels);
+            if (metric == null) {
+                final T created = create();
+                metric = metrics.putIfAbsent(labels, created);
+                if (metric == null) {
+                    metric = created;
+                }
+            }
+            return metric;
+        }
+
+        private String formatLabels(String[] labelValues) {
+            if (labelValues.length == 0) {
+                return "";
+            }
+            final StringBuilder labels = new StringBuilder();
+            for (int i = 0; i < labelValues.length; i ++) {
+                labels.append(i == 0 ? "" : ",").append(labelNames[i]).append("=\"");
+                labels.append(labelValues[i].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+            }
+            return labels.toString();
+        }
+
+        void write(PrintWriter out) {
+            out.print("# HELP " + name + " " + help + "\n");
+            out.print("# TYPE " + name + " " + type + "\n");
+            for (Map.Entry<String, T> e : new TreeMap<String, T>(metrics).entrySet()) {
+                e.getValue().write(out, name, e.getKey());
+            }
+        }
+    }
+
+    abstract static class Metric {
+        abstract void write(PrintWriter out, String name, String labels);
+
+        static String withLabels(String name, String labels, String extra) {
+            if (labels.equals("") && extra == null) {
+                return name;
+            }
+            return name + "{" + labels + (extra == null ? "" : (labels.equals("") ? "" : ",") + extra) + "}";
+        }
+
+        static String format(double value) {
+            if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+                return String.valueOf((long) value);
+            }
+            return String.valueOf(value);
+        }
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        void write(PrintWriter out, String name, String labels) {
+            out.print(withLabels(name, labels, null) + " " + count.sum() + "\n");
+        }
+    }
+
+    public static class Histogram extends Metric {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i ++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double seconds) {
+            for (int i = 0; i < LATENCY_BUCKETS.length; i ++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * Records the time elapsed since the given System.nanoTime().
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        void write(PrintWriter out, String name, String labels) {
+            // the count is read first, so that (as the buckets may be
+            // incremented meanwhile) no bucket exceeds it
+            final long total = count.sum();
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i ++) {
+                cumulative += buckets[i].sum();
+                out.print(withLabels(name + "_bucket", labels, "le=\"" + LATENCY_BUCKETS[i] + "\"") + " " + Math.min(cumulative, total) + "\n");
+            }
+            out.print(withLabels(name + "_bucket", labels, "le=\"+Inf\"") + " " + total + "\n");
+            out.print(withLabels(name + "_sum", labels, null) + " " + sum.sum() + "\n");
+            out.print(withLabels(name + "_count", labels, null) + " " + total + "\n");
+        }
+    }
+
+    static class GaugeMetric extends Metric {
+        private final Gauge gauge;
+
+        GaugeMetric(Gauge gauge) {
+            this.gauge = gauge;
+        }
+
+        void write(PrintWriter out, String name, String labels) {
+            out.print(withLabels(name, labels, null) + " " + format(gauge.get()) + "\n");
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A wrapper for the response to an asynchronous request that lets a worker
+ * thread write it as though it were an ordinary blocking response.  Output
+ * goes through the container's non-blocking API: each write is handed over
+ * only once the WriteListener reports the connection ready, and the worker
+ * (never a container thread) waits until the container has finished with
+ * it, so that the caller may reuse its buffer.
+ *
+ * Once the request has been abandoned (it timed out or the client went
+ * away) the container may recycle the underlying response, so abort() cuts
+ * the worker off: the methods the pid handler uses become no-ops and writes
+ * fail.
+ */
+public class NonBlockingResponse extends HttpServletResponseWrapper {
+
+    private final HttpServletResponse resp;
+
+    private NonBlockingOutputStream out;
+
+    private boolean aborted = false;
+
+    private Throwable error;
+
+    private long bytesWritten = 0;
+
+    public NonBlockingResponse(HttpServletResponse resp) {
+        super(resp);
+        this.resp = resp;
+    }
+
+    /**
+     * Abandons the response, first setting the given status if nothing has
+     * been sent yet.  Any worker waiting to write is woken with an error.
+     */
+    public synchronized void abort(int status) {
+        if (!aborted) {
+            if (!resp.isCommitted()) {
+                resp.setStatus(status);
+            }
+            aborted = true;
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * The number of bytes handed to the container so far.
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized void setStatus(int sc) {
+        if (!aborted) {
+            resp.setStatus(sc);
+        }
+    }
+
+    public synchronized void setHeader(String name, String value) {
+        if (!aborted) {
+            resp.setHeader(name, value);
+        }
+    }
+
+    public synchronized void setContentType(String type) {
+        if (!aborted) {
+            resp.setContentType(type);
+        }
+    }
+
+    public synchronized void sendError(int sc) throws IOException {
+        if (!aborted) {
+            resp.sendError(sc);
+        }
+    }
+
+    public synchronized void sendError(int sc, String msg) throws IOException {
+        if (!aborted) {
+            resp.sendError(sc, msg);
+        }
+    }
+
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+        checkAborted();
+        if (out == null) {
+            out = new NonBlockingOutputStream(resp.getOutputStream());
+        }
+        return out;
+    }
+
+    private void checkAborted() throws IOException {
+        if (error != null) {
+            throw new IOException("Unable to write response: " + error.getMessage(), error);
+        }
+        if (aborted) {
+            throw new IOException("Response was abandoned!");
+        }
+    }
+
+    private class NonBlockingOutputStream extends ServletOutputStream implements WriteListener {
+
+        private final ServletOutputStream target;
+
+        private boolean closed = false;
+
+        /**
+         * Whether the container has made its first call to onWritePossible();
+         * nothing may be written before then.
+         */
+        private boolean listening = false;
+
+        NonBlockingOutputStream(ServletOutputStream target) {
+            this.target = target;
+            target.setWriteListener(this);
+        }
+
+        public void onWritePossible() {
+            synchronized (NonBlockingResponse.this) {
+                listening = true;
+                NonBlockingResponse.this.notifyAll();
+            }
+        }
+
+        public void onError(Throwable t) {
+            synchronized (NonBlockingResponse.this) {
+                error = t;
+                NonBlockingResponse.this.notifyAll();
+            }
+        }
+
+        /**
+         * Waits (holding the response's monitor) until the container can
+         * accept more output.
+         */
+        private void awaitReady() throws IOException {
+            while (true) {
+                checkAborted();
+                if (listening && target.isReady()) {
+                    return;
+                }
+                // the container calls onWritePossible() once the pending write
+                // completes, which can't happen before we release the monitor
+                try {
+                    NonBlockingResponse.this.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing response");
+                }
+            }
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public void setWriteListener(WriteListener writeListener) {
+            throw new IllegalStateException("Writes to this stream block.");
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (NonBlockingResponse.this) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                awaitReady();
+                target.write(b, off, len);
+                bytesWritten += len;
+                // the container may still be sending from our buffer
+                awaitReady();
+            }
+        }
+
+        public void flush() throws IOException {
+            synchronized (NonBlockingResponse.this) {
+                if (!closed) {
+                    awaitReady();
+                    target.flush();
+                    awaitReady();
+                }
+            }
+        }
+
+        /**
+         * Waits for the output written so far to be sent; the response
+         * itself is completed along with the asynchronous request.
+         */
+        public void close() throws IOException {
+            synchronized (NonBlockingResponse.this) {
+                if (!closed) {
+                    awaitReady();
+                    closed = true;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded directory of finished (framed and tagged) images.  Entries
+ * are keyed by the page pid plus a hash of everything that went into the
+ * image (the full citation and rights text, the renderer...), so a change to
+ * any of those simply produces a new key and the old entry ages out.  When
+ * the total size exceeds the configured maximum, the least recently used
+ * entries are deleted.
+ *
+ * Entries are written to a temporary file in the cache directory and then
+ * atomically renamed into place, so concurrent requests for the same key
+ * may both populate it but a reader never sees a partially written file.
+ * The directory is re-indexed at startup, so the cache survives restarts.
+ * Recency is only tracked in memory: a file's modification time stays the
+ * time it was rendered (which is sent as Last-Modified), so after a restart
+ * entries are evicted oldest first.
+ */
+public class OutputCache {
+
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    final Logger logger = LoggerFactory.getLogger(OutputCache.class);
+
+    private final File dir;
+
+    private final long maxBytes;
+
+    /**
+     * Cache file name to size, in least to most recently used order.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * The number of entries for each (sanitized) page pid.
+     */
+    private final Map<String, Integer> pageCounts = new HashMap<String, Integer>();
+
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OutputCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create output cache directory " + dir.getAbsolutePath());
+        }
+
+        // index whatever survived the last run, oldest first
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list output cache directory " + dir.getAbsolutePath());
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (entries) {
+            for (File f : files) {
+                if (f.getName().endsWith(TEMP_SUFFIX)) {
+                    f.delete();
+                } else if (f.getName().endsWith(SUFFIX)) {
+                    entries.put(f.getName(), f.length());
+                    totalBytes += f.length();
+                    countPage(f.getName(), 1);
+                }
+            }
+            evict();
+        }
+        logger.debug("Indexed " + entries.size() + " cached images (" + totalBytes + " bytes) in " + dir.getAbsolutePath());
+    }
+
+    /**
+     * Builds a cache key from the page pid and a hash of the remaining parts.
+     */
+    public static String key(String pagePid, String ... parts) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            final StringBuilder key = new StringBuilder(sanitize(pagePid));
+            key.append('-');
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static String sanitize(String pagePid) {
+        return pagePid.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Returns true if any version of the given page is cached.  This is a
+     * hint that the page is popular enough that a request for it will likely
+     * be a hit, so that speculatively downloading the source image would
+     * probably be wasted effort.
+     */
+    public boolean containsPage(String pagePid) {
+        synchronized (entries) {
+            return pageCounts.containsKey(sanitize(pagePid));
+        }
+    }
+
+    private void countPage(String name, int delta) {
+        final int hash = name.lastIndexOf('-');
+        final String page = hash < 0 ? name : name.substring(0, hash);
+        final Integer count = pageCounts.get(page);
+        final int updated = (count == null ? 0 : count) + delta;
+        if (updated <= 0) {
+            pageCounts.remove(page);
+        } else {
+            pageCounts.put(page, updated);
+        }
+    }
+
+    /**
+     * Returns the cached image for the given key (marking it as recently
+     * used), or null if there isn't one.  Because entries may be evicted at
+     * any time, callers should treat a failure to open the returned file as
+     * a miss.
+     */
+    public File get(String key) {
+        final String name = key + SUFFIX;
+        final File file = new File(dir, name);
+        synchronized (entries) {
+            if (entries.get(name) != null) {
+                if (file.exists()) {
+                    hits.incrementAndGet();
+                    return file;
+                }
+                // removed out from under us
+                totalBytes -= entries.remove(name);
+                countPage(name, -1);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Copies the given finished image into the cache under the given key.
+     */
+    public void put(String key, File image) throws IOException {
+        final File temp = File.createTempFile(key + "-", TEMP_SUFFIX, dir);
+        try {
+            Files.copy(image.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            commit(key, temp);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Starts writing an image into the cache under the given key, for callers
+     * that produce the image as a stream rather than a file.  The entry only
+     * becomes visible once the returned writer is committed.
+     */
+    public Writer begin(String key) throws IOException {
+        return new Writer(key);
+    }
+
+    /**
+     * A cache entry being written to a temporary file.  Exactly one of commit()
+     * or abort() must be called.
+     */
+    public class Writer {
+        private final String key;
+        private final File temp;
+        private final OutputStream out;
+
+        private Writer(String key) throws IOException {
+            this.key = key;
+            temp = File.createTempFile(key + "-", TEMP_SUFFIX, dir);
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public void commit() throws IOException {
+            try {
+                out.close();
+                OutputCache.this.commit(key, temp);
+            } finally {
+                temp.delete();
+            }
+        }
+
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // the file is deleted regardless
+            }
+            temp.delete();
+        }
+    }
+
+    private void commit(String key, File temp) throws IOException {
+        final String name = key + SUFFIX;
+        final long size = temp.length();
+        synchronized (entries) {
+            Files.move(temp.toPath(), new File(dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            final Long previous = entries.put(name, size);
+            if (previous != null) {
+                totalBytes -= previous;
+            } else {
+                countPage(name, 1);
+            }
+            totalBytes += size;
+            stores.incrementAndGet();
+            evict();
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            new File(dir, eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            countPage(eldest.getKey(), -1);
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * A one-line summary of the cache size and counters suitable for logging.
+     */
+    public String getStats() {
+        synchronized (entries) {
+            return "entries=" + entries.size() + " bytes=" + totalBytes + "/" + maxBytes + " hits=" + hits.get() + " misses=" + misses.get() + " stores=" + stores.get() + " evictions=" + evictions.get();
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * How a wrapped image is encoded: its format and the encoder settings.  The
+ * deployment defaults may be overridden for a single request with the
+ * "quality", "progressive" and "sampling" parameters, and WebP is used in
+ * place of JPEG when enabled and the client accepts it.
+ *
+ * Settings left unset (a quality of 0 or a null sampling) are the
+ * renderer's own defaults.  Encodings that are equal produce the same
+ * output, and toString() distinguishes them in caches.
+ */
+public class OutputEncoding {
+
+    public enum Format {
+        JPEG("image/jpeg", "jpg"),
+        WEBP("image/webp", "webp");
+
+        private final String contentType;
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * The supported chroma subsampling ratios.
+     */
+    static final List<String> SAMPLINGS = Arrays.asList("4:4:4", "4:2:2", "4:2:0");
+
+    /**
+     * The renderer's default JPEG encoding, as before any of this was
+     * configurable.
+     */
+    public static final OutputEncoding DEFAULT = new OutputEncoding(Format.JPEG, 0, false, null, false);
+
+    private final Format format;
+    private final int quality;
+    private final boolean progressive;
+    private final String sampling;
+    private final boolean stripMetadata;
+
+    /**
+     * @param quality from 1 to 100, or 0 for the renderer's default
+     * @param sampling one of SAMPLINGS, or null for the renderer's default
+     * @param stripMetadata whether to drop the metadata (and profiles)
+     *        carried over from the source image; the UserComment is added
+     *        regardless
+     */
+    public OutputEncoding(Format format, int quality, boolean progressive, String sampling, boolean stripMetadata) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Invalid quality: " + quality);
+        }
+        if (sampling != null && !SAMPLINGS.contains(sampling)) {
+            throw new IllegalArgumentException("Invalid sampling: " + sampling + " (expected one of " + SAMPLINGS + ")");
+        }
+        this.format = format;
+        this.quality = quality;
+        this.progressive = progressive;
+        this.sampling = sampling;
+        this.stripMetadata = stripMetadata;
+    }
+
+    /**
+     * Returns this encoding with the given request parameters (each null if
+     * not given) applied, throwing IllegalArgumentException if any is
+     * malformed.
+     */
+    public OutputEncoding withOverrides(String quality, String progressive, String sampling) {
+        int q = this.quality;
+        if (quality != null) {
+            try {
+                q = Integer.parseInt(quality.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid quality: " + quality);
+            }
+            if (q < 1) {
+                throw new IllegalArgumentException("Invalid quality: " + quality);
+            }
+        }
+        boolean p = this.progressive;
+        if (progressive != null) {
+            if (progressive.equals("true") || progressive.equals("")) {
+                p = true;
+            } else if (progressive.equals("false")) {
+                p = false;
+            } else {
+                throw new IllegalArgumentException("Invalid progressive: " + progressive);
+            }
+        }
+        return new OutputEncoding(format, q, p, sampling == null ? this.sampling : sampling.trim(), stripMetadata);
+    }
+
+    public OutputEncoding withFormat(Format format) {
+        return new OutputEncoding(format, quality, progressive, sampling, stripMetadata);
+    }
+
+    /**
+     * Returns true if the given Accept header lists image/webp (without a
+     * quality of 0).
+     */
+    public static boolean acceptsWebp(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        for (String range : accept.split(",")) {
+            final String[] parts = range.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("image/webp")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i ++) {
+                final String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException ex) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * Whether a JPEG is written progressively (so that it is drawn at
+     * increasing resolution as it arrives).  WebP has no such mode.
+     */
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * The JPEG chroma subsampling ratio.  Lossy WebP is always 4:2:0.
+     */
+    public String getSampling() {
+        return sampling;
+    }
+
+    /**
+     * The horizontal and vertical sampling factors of the luma component
+     * for the sampling ratio, the chroma components being 1x1.
+     */
+    public int[] getLumaSamplingFactors() {
+        if ("4:4:4".equals(sampling)) {
+            return new int[] { 1, 1 };
+        } else if ("4:2:2".equals(sampling)) {
+            return new int[] { 2, 1 };
+        } else {
+            return new int[] { 2, 2 };
+        }
+    }
+
+    public boolean isStripMetadata() {
+        return stripMetadata;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof OutputEncoding && toString().equals(o.toString());
+    }
+
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    public String toString() {
+        final StringBuilder s = new StringBuilder(format.getExtension());
+        if (quality > 0) {
+            s.append(" q").append(quality);
+        }
+        if (format == Format.JPEG && progressive) {
+            s.append(" progressive");
+        }
+        if (format == Format.JPEG && sampling != null) {
+            s.append(' ').append(sampling);
+        }
+        if (stripMetadata) {
+            s.append(" strip");
+        }
+        return s.toString();
+    }
+
+}
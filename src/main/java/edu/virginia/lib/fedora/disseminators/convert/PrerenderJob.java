@@ -0,0 +1,156 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * The progress of a background job that renders every page of some items
+ * into the output cache.  The items are expanded into pages as the job runs,
+ * so the page total grows until the last item has been expanded; the job is
+ * finished once that has happened and every page has been rendered, found
+ * already cached or has failed.
+ */
+public class PrerenderJob {
+
+    /**
+     * The most failures listed in the job status; the rest are only counted.
+     */
+    private static final int MAX_LISTED_FAILURES = 100;
+
+    private final String id;
+
+    private final List<String> metadataPids;
+
+    private final long submitted = System.currentTimeMillis();
+    private volatile long started;
+    private volatile long finished;
+
+    private final AtomicInteger pendingItems;
+    private final AtomicInteger failedItems = new AtomicInteger();
+    private final AtomicInteger pages = new AtomicInteger();
+    private final AtomicInteger rendered = new AtomicInteger();
+    private final AtomicInteger cached = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final List<String> failures = new ArrayList<String>();
+
+    public PrerenderJob(String id, List<String> metadataPids) {
+        this.id = id;
+        this.metadataPids = metadataPids;
+        this.pendingItems = new AtomicInteger(metadataPids.size());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<String> getMetadataPids() {
+        return metadataPids;
+    }
+
+    /**
+     * Records that an item has been expanded into the given number of pages.
+     */
+    public void itemExpanded(int pageCount) {
+        start();
+        pages.addAndGet(pageCount);
+        pendingItems.decrementAndGet();
+        checkFinished();
+    }
+
+    public void itemFailed(String metadataPid, int status, String reason) {
+        start();
+        failedItems.incrementAndGet();
+        addFailure(metadataPid, status, reason);
+        pendingItems.decrementAndGet();
+        checkFinished();
+    }
+
+    public void pageRendered() {
+        rendered.incrementAndGet();
+        checkFinished();
+    }
+
+    public void pageCached() {
+        cached.incrementAndGet();
+        checkFinished();
+    }
+
+    public void pageFailed(String pagePid, int status, String reason) {
+        failed.incrementAndGet();
+        addFailure(pagePid, status, reason);
+        checkFinished();
+    }
+
+    private synchronized void start() {
+        if (started == 0) {
+            started = System.currentTimeMillis();
+        }
+    }
+
+    private void addFailure(String pid, int status, String reason) {
+        synchronized (failures) {
+            if (failures.size() < MAX_LISTED_FAILURES) {
+                failures.add(pid + " " + status + " " + reason);
+            }
+        }
+    }
+
+    private synchronized void checkFinished() {
+        if (finished == 0 && pendingItems.get() == 0 && rendered.get() + cached.get() + failed.get() == pages.get()) {
+            finished = System.currentTimeMillis();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished != 0;
+    }
+
+    public String getState() {
+        if (finished != 0) {
+            return "finished";
+        }
+        return started == 0 ? "queued" : "running";
+    }
+
+    /**
+     * The number of pages rendered per minute since the job started.
+     */
+    public double getPagesPerMinute() {
+        if (started == 0) {
+            return 0;
+        }
+        final long elapsed = (finished == 0 ? System.currentTimeMillis() : finished) - started;
+        return elapsed == 0 ? 0 : rendered.get() * 60000.0 / elapsed;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("state", getState());
+        final JSONArray items = new JSONArray();
+        items.addAll(metadataPids);
+        json.put("items", items);
+        json.put("failedItems", failedItems.get());
+        json.put("pages", pages.get());
+        json.put("rendered", rendered.get());
+        json.put("alreadyCached", cached.get());
+        json.put("failed", failed.get());
+        json.put("pagesPerMinute", Math.round(getPagesPerMinute() * 10) / 10.0);
+        json.put("submitted", submitted);
+        json.put("started", started == 0 ? null : started);
+        json.put("finished", finished == 0 ? null : finished);
+        final JSONArray failureList = new JSONArray();
+        synchronized (failures) {
+            failureList.addAll(failures);
+        }
+        json.put("failures", failureList);
+        return json;
+    }
+
+}
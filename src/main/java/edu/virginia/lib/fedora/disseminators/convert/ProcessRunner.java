@@ -0,0 +1,259 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs external commands, capturing their exit code and output.  The calling
+ * thread reads the process's stdout, while its stderr is drained (and its
+ * stdin fed, if there is input) by a shared pool of threads, so running a
+ * command doesn't create any threads of its own.  Every copy uses a large
+ * per-thread buffer and blocks on the stream rather than polling it.
+ */
+public class ProcessRunner {
+
+    public static final int DEFAULT_MAX_THREADS = 64;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How long to wait for a killed process to go away.
+     */
+    private static final int KILL_WAIT_SECONDS = 5;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * The outcome of a command.  The stdout is empty if it was copied to a
+     * caller-supplied stream.
+     */
+    public static class Result {
+        private final int exitCode;
+        private final byte[] stdout;
+        private final byte[] stderr;
+
+        Result(int exitCode, byte[] stdout, byte[] stderr) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getStdout() {
+            return toString(stdout);
+        }
+
+        public String getStderr() {
+            return toString(stderr);
+        }
+
+        private static String toString(byte[] bytes) {
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    final Logger logger = LoggerFactory.getLogger(ProcessRunner.class);
+
+    private final ThreadPoolExecutor ioExecutor;
+
+    private final AtomicInteger activeProcesses = new AtomicInteger();
+    private final AtomicLong processes = new AtomicLong();
+    private final AtomicLong overflowThreads = new AtomicLong();
+
+    public ProcessRunner() {
+        this(DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * @param maxThreads the number of pooled I/O threads; as each running
+     *        process needs one or two, this should be about twice the
+     *        number of processes expected to run at once
+     */
+    public ProcessRunner(int maxThreads) {
+        // a stream that isn't drained can block its process forever, so when
+        // every pooled thread is busy the task gets a thread of its own
+        // rather than waiting for one
+        ioExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory("process-io"), new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                overflowThreads.incrementAndGet();
+                final Thread t = new Thread(r, "process-io-overflow");
+                t.setDaemon(true);
+                t.start();
+            }
+        });
+        ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the command with no input, capturing its stdout and stderr.
+     */
+    public Result run(String pfx, List<String> command) throws IOException, InterruptedException {
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        final Result result = run(pfx, command, null, stdout);
+        return new Result(result.exitCode, stdout.toByteArray(), result.stderr);
+    }
+
+    /**
+     * Runs the command, feeding it the given input (if not null) and copying
+     * its stdout to the given stream as it is produced.  If the input can't
+     * be read or the output can't be written, the process is killed and the
+     * exception rethrown, so that a truncated image is never mistaken for a
+     * whole one.  It is also killed if the calling thread is interrupted
+     * (for instance when its request times out), so that it isn't left
+     * running without being counted.
+     */
+    public Result run(String pfx, List<String> command, final InputStream stdin, OutputStream stdout) throws IOException, InterruptedException {
+        logger.debug(pfx + "Running command : " + command.toString());
+        final Process p = new ProcessBuilder(command).start();
+        activeProcesses.incrementAndGet();
+        processes.incrementAndGet();
+        boolean exited = false;
+        try {
+            final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            final Future<?> err = ioExecutor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        copy(p.getErrorStream(), stderr);
+                    } catch (IOException ex) {
+                        // the process has gone away
+                    }
+                }
+            });
+
+            Future<?> feed = null;
+            if (stdin == null) {
+                p.getOutputStream().close();
+            } else {
+                feed = ioExecutor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        try {
+                            try {
+                                copy(stdin, p.getOutputStream());
+                            } finally {
+                                p.getOutputStream().close();
+                            }
+                        } catch (IOException ex) {
+                            p.destroy();
+                            throw ex;
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            try {
+                copy(p.getInputStream(), stdout);
+            } catch (IOException ex) {
+                p.destroy();
+                throw ex;
+            }
+            final int exitCode = p.waitFor();
+            exited = true;
+            await(err);
+            if (feed != null) {
+                try {
+                    await(feed);
+                } catch (IOException ex) {
+                    // if the process failed first (so that feeding it broke
+                    // the pipe) its exit code and stderr say why
+                    if (exitCode == 0) {
+                        throw ex;
+                    }
+                }
+            }
+            return new Result(exitCode, new byte[0], stderr.toByteArray());
+        } finally {
+            if (!exited) {
+                destroy(pfx, p);
+            }
+            p.getInputStream().close();
+            p.getErrorStream().close();
+            activeProcesses.decrementAndGet();
+        }
+    }
+
+    /**
+     * Kills a process that didn't exit by itself and briefly waits for it to
+     * go, so that it is no longer running once it is no longer counted.
+     */
+    private void destroy(String pfx, Process p) {
+        p.destroyForcibly();
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!p.waitFor(KILL_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn(pfx + "Killed process is still running");
+            }
+        } catch (InterruptedException ex) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = BUFFER.get();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * The number of processes currently running.
+     */
+    public int getActiveProcesses() {
+        return activeProcesses.get();
+    }
+
+    /**
+     * A one-line summary of the process counts suitable for logging.
+     */
+    public String getStats() {
+        return "active=" + activeProcesses.get() + " total=" + processes.get() + " ioThreads=" + ioExecutor.getPoolSize() + " overflowThreads=" + overflowThreads.get();
+    }
+
+    public void shutdown() {
+        ioExecutor.shutdownNow();
+    }
+
+}
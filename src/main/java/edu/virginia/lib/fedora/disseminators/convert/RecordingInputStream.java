@@ -0,0 +1,132 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * An InputStream that keeps a copy of everything read (or skipped) through
+ * it, so that after looking at the start of a stream that can't be rewound,
+ * the whole stream can still be read from the beginning.  Unlike mark() and
+ * reset() there is no limit on how much may be read first: the copy is kept
+ * in memory up to a threshold and beyond that in a temporary file.
+ *
+ * Exactly one of replay() or delete() must be called, and once the replayed
+ * stream is finished with, delete().
+ */
+public class RecordingInputStream extends FilterInputStream {
+
+    private final int memoryThreshold;
+
+    private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    private File file;
+
+    private OutputStream fileOut;
+
+    public RecordingInputStream(InputStream in, int memoryThreshold) {
+        super(in);
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b != -1) {
+            record(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int read = in.read(b, off, len);
+        if (read > 0) {
+            record(b, off, read);
+        }
+        return read;
+    }
+
+    /**
+     * Skipped bytes have to be read, so that they are recorded.
+     */
+    public long skip(long n) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read <= 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    public void mark(int readlimit) {
+    }
+
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void record(byte[] b, int off, int len) throws IOException {
+        if (fileOut == null && memory.size() + len > memoryThreshold) {
+            file = File.createTempFile("recorded-", ".tmp");
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(fileOut);
+            memory.reset();
+        }
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+    }
+
+    /**
+     * Returns true if the copy outgrew the threshold and went to a file.
+     */
+    public boolean isSpooled() {
+        return file != null;
+    }
+
+    /**
+     * Returns a stream of everything read so far followed by the rest of the
+     * underlying stream.
+     */
+    public InputStream replay() throws IOException {
+        if (fileOut == null) {
+            return new SequenceInputStream(new ByteArrayInputStream(memory.toByteArray()), in);
+        }
+        fileOut.close();
+        return new SequenceInputStream(new FileInputStream(file), in);
+    }
+
+    /**
+     * Deletes the temporary file (if any).
+     */
+    public void delete() {
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException ex) {
+                // the file is deleted regardless
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many images are rendered at once.  Each render is memory (and,
+ * with ImageMagick, process) hungry, so beyond some number of them a burst of
+ * requests only causes every one of them to fail.  Requests beyond the limit
+ * wait their turn in a bounded queue, and are turned away (so that the caller
+ * can answer with a 503) if the queue is full or they wait too long.
+ * Background work may use whatever capacity no request is waiting for.
+ */
+public class RenderLimiter {
+
+    private static final long BACKGROUND_POLL_MILLIS = 50;
+
+    private final int maxConcurrent;
+
+    private final int maxQueue;
+
+    private final long maxWaitMillis;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queueFullRejections = new AtomicLong();
+    private final AtomicLong timeoutRejections = new AtomicLong();
+    private final AtomicLong background = new AtomicLong();
+
+    /**
+     * @param maxConcurrent the number of renders allowed at once
+     * @param maxQueue the number of requests allowed to wait for a render
+     * @param maxWaitSeconds how long a request may wait
+     */
+    public RenderLimiter(int maxConcurrent, int maxQueue, int maxWaitSeconds) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.maxWaitMillis = maxWaitSeconds * 1000L;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Waits for permission to render, returning false if the request should
+     * be turned away instead.  Every successful call must be followed by a
+     * call to release().
+     */
+    public boolean acquire() throws InterruptedException {
+        if (tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueue) {
+            queued.decrementAndGet();
+            queueFullRejections.incrementAndGet();
+            return false;
+        }
+        try {
+            if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+            timeoutRejections.incrementAndGet();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes permission to render only if it is available without queueing,
+     * returning false otherwise.  Every successful call must be followed by
+     * a call to release().
+     */
+    public boolean tryAcquire() throws InterruptedException {
+        // unlike permits.tryAcquire(), this doesn't barge ahead of queued
+        // requests
+        if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for permission to render on behalf of background work.  Unlike
+     * acquire() this doesn't queue: it only takes a permit that no request
+     * is waiting for, so requests always come first.  Every call must be
+     * followed by a call to release().
+     */
+    public void acquireBackground() throws InterruptedException {
+        // the semaphore is fair, so this never takes a permit ahead of a
+        // queued request
+        while (!permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            Thread.sleep(BACKGROUND_POLL_MILLIS);
+        }
+        background.incrementAndGet();
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * The number of renders in progress.
+     */
+    public int getInUse() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * The number of requests waiting to render.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * The number of requests turned away because the queue was full.
+     */
+    public long getQueueFullRejections() {
+        return queueFullRejections.get();
+    }
+
+    /**
+     * The number of requests turned away after waiting too long.
+     */
+    public long getTimeoutRejections() {
+        return timeoutRejections.get();
+    }
+
+    public long getRejections() {
+        return queueFullRejections.get() + timeoutRejections.get();
+    }
+
+    /**
+     * A one-line summary of the limiter state and counters suitable for
+     * logging.
+     */
+    public String getStats() {
+        return "inUse=" + getInUse() + "/" + maxConcurrent + " queued=" + getQueued() + "/" + maxQueue + " admitted=" + admitted.get() + " queueFullRejections=" + queueFullRejections.get() + " timeoutRejections=" + timeoutRejections.get() + " background=" + background.get();
+    }
+
+}
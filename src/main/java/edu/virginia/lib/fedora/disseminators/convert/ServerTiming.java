@@ -0,0 +1,43 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The time one request spent in each stage, formatted as the value of a
+ * Server-Timing header (for example "iiif;dur=12.3, tracksys;dur=4.0").
+ * Time recorded more than once for the same stage is added up, and stages are
+ * listed in the order they were first recorded.
+ */
+public class ServerTiming {
+
+    private final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+
+    /**
+     * Records the time elapsed since the given System.nanoTime() for the
+     * named stage, which must be a token (letters, digits and "-", "_" or
+     * ".").
+     */
+    public synchronized void add(String stage, long startNanos) {
+        final long elapsed = System.nanoTime() - startNanos;
+        final Long previous = durations.get(stage);
+        durations.put(stage, previous == null ? elapsed : previous + elapsed);
+    }
+
+    public synchronized boolean isEmpty() {
+        return durations.isEmpty();
+    }
+
+    public synchronized String toString() {
+        final StringBuilder value = new StringBuilder();
+        for (Map.Entry<String, Long> e : durations.entrySet()) {
+            if (value.length() > 0) {
+                value.append(", ");
+            }
+            value.append(e.getKey()).append(";dur=").append(String.format(Locale.ROOT, "%.1f", e.getValue() / 1e6));
+        }
+        return value.toString();
+    }
+
+}
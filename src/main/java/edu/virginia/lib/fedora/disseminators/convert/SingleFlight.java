@@ -0,0 +1,334 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent renders of the same image.  The first request for a
+ * key (the leader) downloads and renders the image as usual, keeping a copy
+ * of the result; requests for the same key that arrive while it does so (the
+ * followers) wait for that copy instead of repeating the work.  The copy is
+ * only kept once a follower has joined, so a render nobody else wants costs
+ * no memory; a follower that joins after the leader has started writing an
+ * image that wasn't being kept renders the image itself.  If the
+ * leader fails with a definitive answer (the image doesn't exist), that is
+ * passed on to the followers; any other failure, which may be peculiar to
+ * the leader (its client went away, it was turned away by the render limit)
+ * or may not recur, abandons the flight so that the followers join again,
+ * one of them becoming the new leader.
+ *
+ * Only the rendering is shared: everything that depends on the requester,
+ * such as the access check, is still done for each request.  As the key (which
+ * includes the citation) isn't known until the metadata has been fetched, a
+ * request may also claim a page while it downloads the image speculatively,
+ * so that others arriving in the meantime don't start downloads of their
+ * own.
+ */
+public class SingleFlight {
+
+    /**
+     * The largest result kept for followers; followers of a larger image
+     * render it themselves.
+     */
+    public static final int DEFAULT_MAX_SHARED_BYTES = 64 * 1024 * 1024;
+
+    private final Map<String, Result> inFlight = new HashMap<String, Result>();
+
+    private final Set<String> claimedPages = new HashSet<String>();
+
+    private final long maxWaitMillis;
+
+    private final int maxSharedBytes;
+
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong unshared = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+
+    /**
+     * @param maxWaitSeconds how long a follower waits for the leader before
+     *        rendering the image itself
+     */
+    public SingleFlight(int maxWaitSeconds, int maxSharedBytes) {
+        this.maxWaitMillis = maxWaitSeconds * 1000L;
+        this.maxSharedBytes = maxSharedBytes;
+    }
+
+    /**
+     * Joins the render for the given key, as its leader if none is in
+     * progress.  A leader must end the flight with succeed() or fail().
+     */
+    public Flight join(String key, String pagePid) {
+        synchronized (inFlight) {
+            final Result result = inFlight.get(key);
+            if (result != null) {
+                return new Flight(result, false, !result.addFollower());
+            }
+            final Result created = new Result(key, pagePid);
+            inFlight.put(key, created);
+            leaders.incrementAndGet();
+            return new Flight(created, true, false);
+        }
+    }
+
+    /**
+     * Claims the given page for a request about to download it, returning
+     * false (without claiming it) if the page is already claimed or being
+     * rendered.  A successful claim must be followed by releasePage().
+     */
+    public boolean claimPage(String pagePid) {
+        synchronized (inFlight) {
+            if (claimedPages.contains(pagePid)) {
+                return false;
+            }
+            for (Result result : inFlight.values()) {
+                if (result.pagePid.equals(pagePid)) {
+                    return false;
+                }
+            }
+            claimedPages.add(pagePid);
+            return true;
+        }
+    }
+
+    public void releasePage(String pagePid) {
+        synchronized (inFlight) {
+            claimedPages.remove(pagePid);
+        }
+    }
+
+    /**
+     * Returns true if the given failure status of a leader would be the same
+     * for any request for the image, and so can be passed on.  (Access is
+     * checked for each request before it joins, so a leader never fails
+     * with a 403.)
+     */
+    static boolean isDefinitive(int status) {
+        return status == 404;
+    }
+
+    private void end(Result result) {
+        synchronized (inFlight) {
+            if (inFlight.get(result.key) == result) {
+                inFlight.remove(result.key);
+            }
+        }
+    }
+
+    /**
+     * The outcome of one render, shared by its leader and followers.
+     */
+    private class Result {
+        private final String key;
+        private final String pagePid;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * The leader's output, kept only once there is a follower.  This and
+         * the counts are guarded by the result.
+         */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private boolean overflowed = false;
+        private int followers = 0;
+        private long written = 0;
+
+        /**
+         * Set before done is counted down.
+         */
+        private int status;
+        private boolean shared;
+        private boolean abandoned = false;
+
+        Result(String key, String pagePid) {
+            this.key = key;
+            this.pagePid = pagePid;
+        }
+
+        /**
+         * Adds a follower, returning false if it is too late to share the
+         * image: the leader has written some of it without keeping it.
+         */
+        synchronized boolean addFollower() {
+            if (followers == 0 && written > 0) {
+                return false;
+            }
+            followers ++;
+            return true;
+        }
+
+        synchronized void write(byte[] b, int off, int len) {
+            written += len;
+            if (followers == 0 || overflowed) {
+                return;
+            }
+            if (bytes.size() + len > maxSharedBytes) {
+                overflowed = true;
+                bytes.reset();
+                return;
+            }
+            bytes.write(b, off, len);
+        }
+
+        synchronized boolean isShareable() {
+            return followers > 0 && !overflowed;
+        }
+    }
+
+    /**
+     * One request's part in a render.
+     */
+    public class Flight {
+
+        private final Result result;
+
+        private final boolean leader;
+
+        /**
+         * True for a follower that joined too late to share the image.
+         */
+        private final boolean late;
+
+        private Flight(Result result, boolean leader, boolean late) {
+            this.result = result;
+            this.leader = leader;
+            this.late = late;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * The stream to which the leader copies the rendered image.  Output
+         * is dropped until a follower joins, and beyond the size limit (the
+         * image is then not shared).
+         */
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                public void write(int b) {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) {
+                    result.write(b, off, len);
+                }
+            };
+        }
+
+        /**
+         * Ends the flight, handing the image written to the output stream
+         * to the followers.
+         */
+        public void succeed() {
+            if (result.done.getCount() > 0) {
+                end(result);
+                result.status = 200;
+                result.shared = result.isShareable();
+                result.done.countDown();
+            }
+        }
+
+        /**
+         * Ends the flight with the given failure status, unless it has
+         * already ended.  Only a definitive status is passed on; otherwise
+         * the flight is abandoned.
+         */
+        public void fail(int status) {
+            if (result.done.getCount() > 0) {
+                end(result);
+                if (isDefinitive(status)) {
+                    failures.incrementAndGet();
+                    result.status = status;
+                } else {
+                    abandoned.incrementAndGet();
+                    result.abandoned = true;
+                }
+                result.done.countDown();
+            }
+        }
+
+        /**
+         * Waits for the leader, returning false (at once) if the follower
+         * joined too late, or if the leader takes too long, its image was too
+         * large to share or it abandoned the flight; the follower should then
+         * render the image itself (in the last case, after joining again).
+         * Otherwise getStatus() (and, if that is 200, the image) is the
+         * outcome to be passed on.
+         */
+        public boolean await() throws InterruptedException {
+            if (late) {
+                SingleFlight.this.late.incrementAndGet();
+                return false;
+            }
+            if (!result.done.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                return false;
+            }
+            if (result.abandoned) {
+                return false;
+            }
+            if (result.status == 200 && !result.shared) {
+                unshared.incrementAndGet();
+                return false;
+            }
+            if (result.status == 200) {
+                shared.incrementAndGet();
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the leader failed without a result to pass on.
+         */
+        public boolean isAbandoned() {
+            return result.abandoned;
+        }
+
+        public int getStatus() {
+            return result.status;
+        }
+
+        /**
+         * The size of the image kept for the followers so far.
+         */
+        public int getImageSize() {
+            synchronized (result) {
+                return result.bytes.size();
+            }
+        }
+
+        /**
+         * Writes the shared image, without copying it first.
+         */
+        public void writeImage(OutputStream out) throws IOException {
+            synchronized (result) {
+                result.bytes.writeTo(out);
+            }
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * A one-line summary of the counters suitable for logging.
+     */
+    public String getStats() {
+        return "inFlight=" + getInFlight() + " leaders=" + leaders.get() + " shared=" + shared.get() + " failures=" + failures.get() + " abandoned=" + abandoned.get() + " timeouts=" + timeouts.get() + " tooLarge=" + unshared.get() + " late=" + late.get();
+    }
+
+}
@@ -0,0 +1,209 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of upstream lookups in which each entry expires after
+ * a time-to-live.  "Negative" results (for instance a 404 from Tracksys) are
+ * cached too, but for their own (typically shorter) time-to-live.
+ *
+ * Once an entry expires it is kept for a further stale period.  During that
+ * period a request gets the stale value straight away while a fresh one is
+ * loaded in the background, and if loading fails the stale value continues
+ * to be served, so a slow or failing upstream service doesn't hold up every
+ * request that depends on it.
+ *
+ * Concurrent loads of the same key are coalesced: only the first calls the
+ * loader, and the others wait for (and share) its result, so that a burst of
+ * requests for the pages of an uncached item makes one upstream request.
+ */
+public class TtlCache<K, V> {
+
+    /**
+     * Loads the current value from the upstream service.
+     */
+    public interface Loader<V> {
+        V load() throws Exception;
+    }
+
+    /**
+     * Decides whether a loaded value represents a "not found" result.
+     */
+    public interface NegativePredicate<V> {
+        boolean isNegative(V value);
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    final Logger logger = LoggerFactory.getLogger(TtlCache.class);
+
+    private final String name;
+
+    private final LruCache<K, Entry<V>> entries;
+
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final long staleMillis;
+
+    private final NegativePredicate<V> negative;
+
+    private final Executor refreshExecutor;
+
+    private final Set<K> refreshing = Collections.synchronizedSet(new HashSet<K>());
+
+    /**
+     * The loads in progress, by key.
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param name a name used when logging
+     * @param capacity the maximum number of entries
+     * @param ttlSeconds how long a loaded value is used without reloading it
+     * @param negativeTtlSeconds how long a negative result is used without reloading it
+     * @param staleSeconds how long past its expiry a value may still be served
+     *        while it is being refreshed, or when refreshing it fails
+     * @param negative identifies negative results (may be null)
+     * @param refreshExecutor runs background refreshes of stale entries (if
+     *        null, stale entries are refreshed synchronously and only served
+     *        if that fails)
+     */
+    public TtlCache(String name, int capacity, int ttlSeconds, int negativeTtlSeconds, int staleSeconds, NegativePredicate<V> negative, Executor refreshExecutor) {
+        this.name = name;
+        this.entries = new LruCache<K, Entry<V>>(capacity);
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.negativeTtlMillis = negativeTtlSeconds * 1000L;
+        this.staleMillis = staleSeconds * 1000L;
+        this.negative = negative;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Returns the cached value for the key if it is current, otherwise loads
+     * (and caches) it with the given loader.  Exceptions thrown by the loader
+     * are rethrown unless a stale value is available.
+     */
+    public V get(final K key, final Loader<V> loader, final String pfx) throws Exception {
+        final Entry<V> entry = entries.get(key);
+        final long now = System.currentTimeMillis();
+
+        if (entry != null && now < entry.expires) {
+            if (negative != null && negative.isNegative(entry.value)) {
+                negativeHits.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return entry.value;
+        }
+
+        misses.incrementAndGet();
+
+        final boolean usable = entry != null && now < entry.expires + staleMillis;
+        if (usable && refreshExecutor != null) {
+            if (refreshing.add(key)) {
+                try {
+                    refreshExecutor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                load(key, loader);
+                            } catch (Exception ex) {
+                                logger.warn(pfx + "Background refresh of " + name + " entry for \"" + key + "\" failed: " + ex);
+                            } finally {
+                                refreshing.remove(key);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    refreshing.remove(key);
+                }
+            }
+            staleHits.incrementAndGet();
+            logger.debug(pfx + "Using stale " + name + " entry for \"" + key + "\" while it is refreshed");
+            return entry.value;
+        }
+
+        try {
+            return load(key, loader);
+        } catch (Exception ex) {
+            if (usable) {
+                staleHits.incrementAndGet();
+                logger.warn(pfx + "Using stale " + name + " entry for \"" + key + "\" after failed refresh: " + ex);
+                return entry.value;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Loads and caches the value for the key, or if it is already being
+     * loaded, waits for that load instead.
+     */
+    private V load(K key, Loader<V> loader) throws Exception {
+        final CompletableFuture<V> load = new CompletableFuture<V>();
+        final CompletableFuture<V> inProgress = loading.putIfAbsent(key, load);
+        if (inProgress != null) {
+            coalesced.incrementAndGet();
+            try {
+                return inProgress.get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+
+        try {
+            final V value;
+            try {
+                value = loader.load();
+            } catch (Throwable t) {
+                loadFailures.incrementAndGet();
+                load.completeExceptionally(t);
+                throw t;
+            }
+            final long ttl = negative != null && negative.isNegative(value) ? negativeTtlMillis : ttlMillis;
+            if (ttl > 0) {
+                entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+            }
+            load.complete(value);
+            return value;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * A one-line summary of the cache size and counters suitable for logging.
+     */
+    public String getStats() {
+        return "size=" + entries.size() + "/" + entries.getCapacity() + " hits=" + hits.get() + " negativeHits=" + negativeHits.get() + " misses=" + misses.get() + " staleHits=" + staleHits.get() + " loadFailures=" + loadFailures.get() + " coalesced=" + coalesced.get();
+    }
+
+}
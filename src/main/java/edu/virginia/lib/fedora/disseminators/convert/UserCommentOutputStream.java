@@ -0,0 +1,28 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that adds a UserComment to the Exif metadata of the image
+ * written through it, in whichever way the image format calls for.
+ */
+public abstract class UserCommentOutputStream extends OutputStream {
+
+    /**
+     * Returns a stream that adds the comment to an image of the given format.
+     */
+    public static UserCommentOutputStream create(OutputStream out, String comment, OutputEncoding.Format format) {
+        if (format == OutputEncoding.Format.WEBP) {
+            return new WebpExifOutputStream(out, comment);
+        }
+        return new ExifCommentOutputStream(out, comment);
+    }
+
+    /**
+     * Checks that a complete image was written and writes whatever remains
+     * of it, flushing (but not closing) the underlying stream.
+     */
+    public abstract void finish() throws IOException;
+
+}
@@ -0,0 +1,229 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An OutputStream that adds a UserComment to the Exif metadata of the WebP
+ * written through it.  A simple (lossy "VP8 " or lossless "VP8L") file is
+ * made an extended one in a single pass: once the start of its image chunk
+ * has arrived, the RIFF header is written with the final length, followed
+ * by a "VP8X" chunk (with the canvas size read from the image bitstream),
+ * the rest is copied straight through and an "EXIF" chunk is appended when
+ * it is finished.  A file that is already extended is buffered in full, so
+ * that any EXIF chunk it has can be replaced (keeping its other tags).
+ */
+public class WebpExifOutputStream extends UserCommentOutputStream {
+
+    /**
+     * The RIFF header, the first chunk header and as much of its payload as
+     * is needed to read the canvas size.
+     */
+    private static final int HEADER_SIZE = 12 + 8 + 10;
+
+    private static final int VP8X_SIZE = 8 + 10;
+
+    private static final int EXIF_FLAG = 0x08;
+    private static final int ALPHA_FLAG = 0x10;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private final OutputStream out;
+
+    private final String comment;
+
+    /**
+     * The buffered start of the image (or, for an extended file, all of it),
+     * or null once it has been written.
+     */
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private boolean extended = false;
+
+    /**
+     * The EXIF chunk to be appended to a simple file.
+     */
+    private byte[] exifChunk;
+
+    public WebpExifOutputStream(OutputStream out, String comment) {
+        this.out = out;
+        this.comment = comment;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (buffer == null) {
+            out.write(b, off, len);
+            return;
+        }
+        buffer.write(b, off, len);
+        if (!extended && buffer.size() >= HEADER_SIZE) {
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        final byte[] header = buffer.toByteArray();
+        if (!fourcc(header, 0).equals("RIFF") || !fourcc(header, 8).equals("WEBP")) {
+            throw new IOException("Not a WebP image!");
+        }
+        final String chunk = fourcc(header, 12);
+        final int width;
+        final int height;
+        boolean alpha = false;
+        if (chunk.equals("VP8X")) {
+            extended = true;
+            return;
+        } else if (chunk.equals("VP8 ")) {
+            // a 3 byte frame tag and the start code precede the dimensions
+            if ((header[23] & 0xFF) != 0x9D || (header[24] & 0xFF) != 0x01 || (header[25] & 0xFF) != 0x2A) {
+                throw new IOException("Invalid VP8 frame header!");
+            }
+            width = readLittleEndian(header, 26, 2) & 0x3FFF;
+            height = readLittleEndian(header, 28, 2) & 0x3FFF;
+        } else if (chunk.equals("VP8L")) {
+            if ((header[20] & 0xFF) != 0x2F) {
+                throw new IOException("Invalid VP8L signature!");
+            }
+            final int bits = readLittleEndian(header, 21, 4);
+            width = (bits & 0x3FFF) + 1;
+            height = ((bits >> 14) & 0x3FFF) + 1;
+            alpha = ((bits >> 28) & 1) == 1;
+        } else {
+            throw new IOException("Unsupported WebP chunk \"" + chunk + "\"!");
+        }
+
+        exifChunk = createExifChunk(null);
+        final byte[] vp8x = new byte[VP8X_SIZE];
+        writeFourcc(vp8x, 0, "VP8X");
+        writeLittleEndian(vp8x, 4, 4, 10);
+        vp8x[8] = (byte) (EXIF_FLAG | (alpha ? ALPHA_FLAG : 0));
+        writeLittleEndian(vp8x, 12, 3, width - 1);
+        writeLittleEndian(vp8x, 15, 3, height - 1);
+
+        final byte[] riff = Arrays.copyOf(header, 12);
+        writeLittleEndian(riff, 4, 4, readLittleEndian(header, 4, 4) + vp8x.length + exifChunk.length);
+        out.write(riff);
+        out.write(vp8x);
+        out.write(header, 12, header.length - 12);
+        buffer = null;
+    }
+
+    /**
+     * Rewrites a complete extended file with its EXIF flag set and its EXIF
+     * chunk replaced (or added) before any XMP chunk, as the container
+     * specification orders them.
+     */
+    private void writeExtended(byte[] webp) throws IOException {
+        byte[] existing = null;
+        final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        int xmp = -1;
+        int offset = 12;
+        while (offset + 8 <= webp.length) {
+            final String chunk = fourcc(webp, offset);
+            final int size = readLittleEndian(webp, offset + 4, 4);
+            final int end = offset + 8 + size + (size & 1);
+            if (size < 0 || end > webp.length) {
+                throw new IOException("Truncated WebP chunk \"" + chunk + "\"!");
+            }
+            if (chunk.equals("EXIF")) {
+                existing = Arrays.copyOfRange(webp, offset + 8, offset + 8 + size);
+            } else {
+                if (chunk.equals("XMP ") && xmp < 0) {
+                    xmp = chunks.size();
+                }
+                chunks.write(webp, offset, end - offset);
+            }
+            offset = end;
+        }
+
+        // some writers include the JPEG APP1 identifier
+        if (existing != null && existing.length > EXIF_HEADER.length && Arrays.equals(Arrays.copyOf(existing, EXIF_HEADER.length), EXIF_HEADER)) {
+            existing = Arrays.copyOfRange(existing, EXIF_HEADER.length, existing.length);
+        }
+        final byte[] exif = createExifChunk(existing);
+        final byte[] body = chunks.toByteArray();
+        body[8] |= EXIF_FLAG;
+        if (xmp < 0) {
+            xmp = body.length;
+        }
+
+        final byte[] riff = Arrays.copyOf(webp, 12);
+        writeLittleEndian(riff, 4, 4, 4 + body.length + exif.length);
+        out.write(riff);
+        out.write(body, 0, xmp);
+        out.write(exif);
+        out.write(body, xmp, body.length - xmp);
+    }
+
+    private byte[] createExifChunk(byte[] existing) throws IOException {
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        chunk.write(new byte[8]);
+        ExifCommentOutputStream.writeExif(chunk, existing, comment);
+        final int size = chunk.size() - 8;
+        if ((size & 1) == 1) {
+            chunk.write(0);
+        }
+        final byte[] bytes = chunk.toByteArray();
+        writeFourcc(bytes, 0, "EXIF");
+        writeLittleEndian(bytes, 4, 4, size);
+        return bytes;
+    }
+
+    private static String fourcc(byte[] b, int offset) {
+        return new String(b, offset, 4, StandardCharsets.US_ASCII);
+    }
+
+    private static void writeFourcc(byte[] b, int offset, String fourcc) {
+        System.arraycopy(fourcc.getBytes(StandardCharsets.US_ASCII), 0, b, offset, 4);
+    }
+
+    private static int readLittleEndian(byte[] b, int offset, int length) {
+        int value = 0;
+        for (int i = length - 1; i >= 0; i --) {
+            value = (value << 8) | (b[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLittleEndian(byte[] b, int offset, int length, int value) {
+        for (int i = 0; i < length; i ++) {
+            b[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    public void finish() throws IOException {
+        if (extended && buffer != null) {
+            final byte[] webp = buffer.toByteArray();
+            buffer = null;
+            writeExtended(webp);
+        } else if (buffer != null) {
+            throw new IOException("Incomplete WebP image: no image chunk found!");
+        } else if (exifChunk != null) {
+            out.write(exifChunk);
+            exifChunk = null;
+        }
+        out.flush();
+    }
+
+    public void flush() throws IOException {
+        if (buffer == null) {
+            out.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class CacheHeadersTest {
+
+    private static final long RENDERED = 1700000000123L;
+
+    private static final CacheHeaders HEADERS = new CacheHeaders("uva-lib_123-abc", RENDERED, "public, max-age=86400");
+
+    @Test
+    public void testIfNoneMatch() {
+        Assert.assertEquals("\"uva-lib_123-abc\"", HEADERS.getEtag());
+        Assert.assertTrue(HEADERS.isNotModified("\"uva-lib_123-abc\"", -1));
+        Assert.assertTrue(HEADERS.isNotModified("\"other\", \"uva-lib_123-abc\"", -1));
+        Assert.assertTrue("A proxy may weaken the tag.", HEADERS.isNotModified("W/\"uva-lib_123-abc\"", -1));
+        Assert.assertTrue(HEADERS.isNotModified("*", -1));
+        Assert.assertFalse(HEADERS.isNotModified("\"uva-lib_123-def\"", -1));
+        Assert.assertFalse("Tags are quoted.", HEADERS.isNotModified("uva-lib_123-abc", -1));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        Assert.assertTrue("The header has a resolution of one second.", HEADERS.isNotModified(null, 1700000000000L));
+        Assert.assertTrue(HEADERS.isNotModified(null, RENDERED + 60000));
+        Assert.assertFalse(HEADERS.isNotModified(null, RENDERED - 1000));
+        Assert.assertFalse(HEADERS.isNotModified(null, -1));
+        Assert.assertFalse("If-None-Match takes precedence.", HEADERS.isNotModified("\"uva-lib_123-def\"", RENDERED + 60000));
+    }
+
+    @Test
+    public void testRevalidateCachedImage() throws Exception {
+        final File dir = Files.createTempDirectory("cache-headers-test").toFile();
+        try {
+            final OutputCache cache = new OutputCache(dir, 1000);
+            final File image = new File(dir, "image");
+            FileUtils.writeByteArrayToFile(image, new byte[100]);
+            cache.put("page-1", image);
+            new File(dir, "page-1.jpg").setLastModified(RENDERED);
+
+            // the first hit sends Last-Modified, which the client sends back
+            final CacheHeaders first = new CacheHeaders("page-1", cache.get("page-1").lastModified(), null);
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            final long ifModifiedSince = format.parse(format.format(RENDERED)).getTime();
+            Assert.assertTrue(first.isNotModified(null, ifModifiedSince));
+
+            final CacheHeaders second = new CacheHeaders("page-1", cache.get("page-1").lastModified(), null);
+            Assert.assertTrue("A hit doesn't change the render time.", second.isNotModified(null, ifModifiedSince));
+            Assert.assertFalse("A new render has no Last-Modified.", new CacheHeaders("page-1", 0, null).isNotModified(null, ifModifiedSince));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+}
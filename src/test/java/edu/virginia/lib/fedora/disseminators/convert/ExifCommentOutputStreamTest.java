@@ -0,0 +1,81 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.Assert;
+
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.exif.ExifRewriter;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+import org.junit.Test;
+
+public class ExifCommentOutputStreamTest {
+
+    private static final String COMMENT = "Title of the item.  MSS 1234.\nCopyright and other legal restrictions may apply.";
+
+    @Test
+    public void testAddsExifAfterJfif() throws Exception {
+        final byte[] original = jpeg();
+        final byte[] tagged = addComment(original, original.length);
+
+        Assert.assertEquals(COMMENT, getComment(tagged));
+        final int app1 = 4 + ((original[4] & 0xFF) << 8 | (original[5] & 0xFF));
+        Assert.assertEquals("JFIF APP0 comes first.", 0xE0, tagged[3] & 0xFF);
+        Assert.assertEquals("Exif APP1 follows it.", 0xE1, tagged[app1 + 1] & 0xFF);
+
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(tagged));
+        Assert.assertEquals(300, image.getWidth());
+        Assert.assertEquals("Image data is copied unchanged.", original.length, tagged.length - (tagged[app1 + 2] & 0xFF) * 256 - (tagged[app1 + 3] & 0xFF) - 2);
+    }
+
+    @Test
+    public void testKeepsExistingTagsWhenWrittenByteByByte() throws Exception {
+        final TiffOutputSet outputSet = new TiffOutputSet();
+        outputSet.getOrCreateRootDirectory().add(TiffTagConstants.TIFF_TAG_ARTIST, "Someone");
+        outputSet.getOrCreateExifDirectory().add(ExifTagConstants.EXIF_TAG_USER_COMMENT, "An old comment");
+        final ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+        new ExifRewriter().updateExifMetadataLossy(jpeg(), withExif, outputSet);
+
+        final byte[] tagged = addComment(withExif.toByteArray(), 1);
+
+        Assert.assertEquals("Existing comment is replaced.", COMMENT, getComment(tagged));
+        final JpegImageMetadata metadata = (JpegImageMetadata) Imaging.getMetadata(tagged);
+        Assert.assertEquals("Other tags are kept.", "Someone", metadata.findEXIFValue(TiffTagConstants.TIFF_TAG_ARTIST).getStringValue());
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testRejectsTruncatedImage() throws Exception {
+        final byte[] original = jpeg();
+        final ExifCommentOutputStream out = new ExifCommentOutputStream(new ByteArrayOutputStream(), COMMENT);
+        out.write(original, 0, 10);
+        out.finish();
+    }
+
+    private byte[] jpeg() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private byte[] addComment(byte[] jpeg, int chunkSize) throws Exception {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final ExifCommentOutputStream out = new ExifCommentOutputStream(result, COMMENT);
+        for (int i = 0; i < jpeg.length; i += chunkSize) {
+            out.write(jpeg, i, Math.min(chunkSize, jpeg.length - i));
+        }
+        out.close();
+        return result.toByteArray();
+    }
+
+    private String getComment(byte[] jpeg) throws Exception {
+        final JpegImageMetadata metadata = (JpegImageMetadata) Imaging.getMetadata(jpeg);
+        return (String) metadata.findEXIFValue(ExifTagConstants.EXIF_TAG_USER_COMMENT).getValue();
+    }
+}
@@ -0,0 +1,57 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ImageSizeTest {
+
+    private static ImageSize parse(String value) {
+        return ImageSize.parse(value, 50, 1000);
+    }
+
+    @Test
+    public void testParse() {
+        Assert.assertEquals("pct:50", parse(null).getIiifSize());
+        Assert.assertEquals("pct:50", parse("").getIiifSize());
+        Assert.assertEquals("pct:25", parse("pct:25").getIiifSize());
+        Assert.assertEquals("!800,800", parse("800").getIiifSize());
+        Assert.assertEquals("!800,600", parse(" 800,600 ").getIiifSize());
+        Assert.assertEquals(parse("pct:10"), parse("pct:10"));
+    }
+
+    @Test
+    public void testClampedToLimits() {
+        Assert.assertEquals("pct:50", parse("pct:100").getIiifSize());
+        Assert.assertEquals("!1000,1000", parse("5000").getIiifSize());
+        Assert.assertEquals("!" + ImageSize.MIN_DIMENSION + ",1000", parse("1,2000").getIiifSize());
+        Assert.assertEquals("The default follows the limit.", "pct:25", ImageSize.parse(null, 25, 1000).getIiifSize());
+        Assert.assertEquals("pct:" + ImageSize.MIN_PERCENT, parse("pct:1").getIiifSize());
+    }
+
+    @Test
+    public void testBoxLimitedToPercent() {
+        Assert.assertTrue(parse("1000").isBox());
+        Assert.assertFalse(parse("pct:25").isBox());
+        Assert.assertEquals("pct:25", parse("pct:25").getIiifSize(1600, 1200));
+        Assert.assertEquals("A box within the percentage is kept.", "!300,200", parse("300,200").getIiifSize(4000, 3000));
+        Assert.assertEquals("A small image isn't returned whole (or scaled up).", "!800,600", parse("1000").getIiifSize(1600, 1200));
+        Assert.assertEquals("!800,500", parse("900,500").getIiifSize(1600, 1200));
+        Assert.assertEquals("!1000,1000", parse("1000").getIiifSize(6000, 4000));
+        Assert.assertEquals("Without the dimensions, the percentage is requested.", "pct:50", parse("1000").getIiifSize(0, 0));
+        Assert.assertEquals("The requested box still distinguishes variants.", "!1000,1000", parse("1000").toString());
+    }
+
+    @Test
+    public void testMalformed() {
+        for (String value : new String[] { "pct:", "pct:0", "pct:0.0001", "pct:-5", "pct:x", "0", "-1", "big", "800,", ",600", "1,2,3", "full", "max" }) {
+            try {
+                parse(value);
+                Assert.fail("\"" + value + "\" should not parse.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+}
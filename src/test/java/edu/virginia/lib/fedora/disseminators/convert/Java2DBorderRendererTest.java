@@ -0,0 +1,77 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class Java2DBorderRendererTest {
+
+    private static final String LABEL = "Title of the item.  MSS 1234.  University of Virginia Library, Charlottesville, VA.\n\nCopyright and other legal restrictions may apply.";
+
+    @Test
+    public void testLandscapeLayout() throws Exception {
+        BufferedImage result = render(1000, 600);
+        Assert.assertEquals("Border is one point size wide on each side.", 1000 + 40, result.getWidth());
+        Assert.assertTrue("Text box is added below the image.", result.getHeight() > 600 + 20 + 40);
+        Assert.assertEquals("Border is the color ImageMagick draws.", 0xdfdfdf, result.getRGB(5, 5) & 0xffffff);
+    }
+
+    @Test
+    public void testTallLayout() throws Exception {
+        BufferedImage result = render(400, 1000);
+        Assert.assertEquals("Border is one point size tall above and below the image.", 1000 + 40, result.getHeight());
+        Assert.assertTrue("Text box is added to the right of the image.", result.getWidth() > 400 + 20 + 40);
+        Assert.assertEquals("Border is the color ImageMagick draws.", 0xdfdfdf, result.getRGB(5, 5) & 0xffffff);
+        Assert.assertEquals("So is the text box.", 0xdfdfdf, result.getRGB(result.getWidth() - 3, 5) & 0xffffff);
+    }
+
+    @Test
+    public void testStreamedLayoutMatchesFile() throws Exception {
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1000, 600, BufferedImage.TYPE_INT_RGB), "jpeg", in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Java2DBorderRenderer().addBorder("", new ByteArrayInputStream(in.toByteArray()), out, LABEL, OutputEncoding.DEFAULT);
+        BufferedImage streamed = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+
+        BufferedImage result = render(1000, 600);
+        Assert.assertEquals(result.getWidth(), streamed.getWidth());
+        Assert.assertEquals(result.getHeight(), streamed.getHeight());
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1000, 600, BufferedImage.TYPE_INT_RGB), "jpeg", in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Java2DBorderRenderer().addBorder("", new ByteArrayInputStream(in.toByteArray()), out, LABEL, new OutputEncoding(OutputEncoding.Format.JPEG, 60, true, "4:4:4", true));
+
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(out.toByteArray())));
+        IIOMetadataNode tree = (IIOMetadataNode) reader.getImageMetadata(0).getAsTree("javax_imageio_jpeg_image_1.0");
+        reader.dispose();
+        Assert.assertEquals("Progressive.", "2", ((IIOMetadataNode) tree.getElementsByTagName("sof").item(0)).getAttribute("process"));
+        Assert.assertEquals("No chroma subsampling.", "1", ((IIOMetadataNode) tree.getElementsByTagName("componentSpec").item(0)).getAttribute("HsamplingFactor"));
+    }
+
+    private BufferedImage render(int width, int height) throws Exception {
+        File in = File.createTempFile("java2d-test-in-", ".jpg");
+        File out = File.createTempFile("java2d-test-out-", ".jpg");
+        try {
+            ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", in);
+            new Java2DBorderRenderer().addBorder("", in, out, LABEL, OutputEncoding.DEFAULT);
+            return ImageIO.read(out);
+        } finally {
+            in.delete();
+            out.delete();
+        }
+    }
+}
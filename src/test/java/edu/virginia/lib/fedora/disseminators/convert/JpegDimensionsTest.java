@@ -0,0 +1,53 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class JpegDimensionsTest {
+
+    @Test
+    public void testReadDimensions() throws Exception {
+        JpegDimensions d = JpegDimensions.read(new ByteArrayInputStream(jpeg(640, 480)));
+        Assert.assertNotNull(d);
+        Assert.assertEquals(640, d.getWidth());
+        Assert.assertEquals(480, d.getHeight());
+    }
+
+    @Test
+    public void testOnlyReadsHeader() throws Exception {
+        byte[] jpeg = jpeg(300, 700);
+        // everything after the start of scan is irrelevant
+        byte[] truncated = new byte[indexOfStartOfScan(jpeg) + 2];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+        JpegDimensions d = JpegDimensions.read(new ByteArrayInputStream(truncated));
+        Assert.assertEquals("300x700", d.toString());
+    }
+
+    @Test
+    public void testNotAJpeg() throws Exception {
+        Assert.assertNull(JpegDimensions.read(new ByteArrayInputStream("GIF89a".getBytes("US-ASCII"))));
+        Assert.assertNull(JpegDimensions.read(new ByteArrayInputStream(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0 })));
+    }
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", baos);
+        return baos.toByteArray();
+    }
+
+    private static int indexOfStartOfScan(byte[] jpeg) {
+        for (int i = 0; i < jpeg.length - 1; i ++) {
+            if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xFF) == 0xDA) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+}
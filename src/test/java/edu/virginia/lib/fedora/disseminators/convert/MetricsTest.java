@@ -0,0 +1,70 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    private static String write(Metrics metrics) {
+        final StringWriter out = new StringWriter();
+        metrics.write(new PrintWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    public void testHistogramBucketsAreCumulative() {
+        final Metrics metrics = new Metrics();
+        final Metrics.Family<Metrics.Histogram> stages = metrics.histograms("test_seconds", "A test.", "stage");
+        stages.get("download").observe(0.003);
+        stages.get("download").observe(0.2);
+        stages.get("download").observe(100);
+        metrics.sampledCounter("test_rejections_total", "Rejections.", new Metrics.Gauge() {
+            public double get() {
+                return 7;
+            }
+        });
+
+        final String text = write(metrics);
+        Assert.assertTrue(text, text.startsWith("# HELP test_seconds A test.\n# TYPE test_seconds histogram\n"));
+        Assert.assertTrue(text, text.contains("test_seconds_bucket{stage=\"download\",le=\"0.005\"} 1\n"));
+        Assert.assertTrue(text, text.contains("test_seconds_bucket{stage=\"download\",le=\"0.1\"} 1\n"));
+        Assert.assertTrue(text, text.contains("test_seconds_bucket{stage=\"download\",le=\"0.25\"} 2\n"));
+        Assert.assertTrue(text, text.contains("test_seconds_bucket{stage=\"download\",le=\"60.0\"} 2\n"));
+        Assert.assertTrue(text, text.contains("test_seconds_bucket{stage=\"download\",le=\"+Inf\"} 3\n"));
+        Assert.assertTrue(text, text.contains("test_seconds_count{stage=\"download\"} 3\n"));
+    }
+
+    @Test
+    public void testCountersAndGauges() throws Exception {
+        final Metrics metrics = new Metrics();
+        final Metrics.Family<Metrics.Counter> requests = metrics.counters("test_total", "Requests.", "endpoint", "status");
+        requests.get("pid", "200").increment();
+        requests.get("pid", "200").increment();
+        requests.get("pid", "4\"04").increment();
+        final Metrics.Counter bytes = metrics.counters("test_bytes_total", "Bytes.").get();
+        IOUtils.toByteArray(Metrics.counting(new ByteArrayInputStream(new byte[1000]), bytes));
+        metrics.gauge("test_active", "Active.", new Metrics.Gauge() {
+            public double get() {
+                return 3;
+            }
+        });
+        metrics.sampledCounter("test_rejections_total", "Rejections.", new Metrics.Gauge() {
+            public double get() {
+                return 7;
+            }
+        });
+
+        final String text = write(metrics);
+        Assert.assertTrue(text, text.contains("test_total{endpoint=\"pid\",status=\"200\"} 2\n"));
+        Assert.assertTrue(text, text.contains("test_total{endpoint=\"pid\",status=\"4\\\"04\"} 1\n"));
+        Assert.assertTrue(text, text.contains("test_bytes_total 1000\n"));
+        Assert.assertTrue(text, text.contains("# TYPE test_active gauge\ntest_active 3\n"));
+        Assert.assertTrue(text, text.contains("# TYPE test_rejections_total counter\ntest_rejections_total 7\n"));
+    }
+}
@@ -0,0 +1,128 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class NonBlockingResponseTest {
+
+    /**
+     * A container output stream that accepts one write at a time, which is
+     * only "sent" when the test calls complete().
+     */
+    private static class FakeOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        private WriteListener listener;
+        private byte[] pending;
+        private int status;
+
+        public synchronized boolean isReady() {
+            return pending == null;
+        }
+
+        public void setWriteListener(WriteListener writeListener) {
+            listener = writeListener;
+        }
+
+        public synchronized void write(int b) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (pending != null) {
+                throw new IllegalStateException("Write pending");
+            }
+            // keeps the caller's buffer, as a container may
+            pending = b;
+            sent.write(b, off, len);
+        }
+
+        void complete() throws IOException {
+            synchronized (this) {
+                pending = null;
+            }
+            listener.onWritePossible();
+        }
+    }
+
+    private final FakeOutputStream container = new FakeOutputStream();
+
+    private final NonBlockingResponse resp = new NonBlockingResponse((HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { HttpServletResponse.class }, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("getOutputStream")) {
+                return container;
+            } else if (method.getName().equals("setStatus")) {
+                container.status = (Integer) args[0];
+            } else if (method.getName().equals("isCommitted")) {
+                return container.sent.size() > 0;
+            }
+            return null;
+        }
+    }));
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        worker.shutdownNow();
+    }
+
+    private Future<Void> write(final byte[] bytes) {
+        return worker.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                resp.getOutputStream().write(bytes);
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testWriteWaitsForContainer() throws Exception {
+        final Future<Void> write = write(new byte[] { 1, 2, 3 });
+        Thread.sleep(100);
+        Assert.assertEquals("Nothing is written before onWritePossible().", 0, container.sent.size());
+
+        container.listener.onWritePossible();
+        Thread.sleep(100);
+        Assert.assertEquals(3, container.sent.size());
+        Assert.assertFalse("The write isn't done while the buffer is in use.", write.isDone());
+
+        container.complete();
+        write.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testAbortWakesWriter() throws Exception {
+        final Future<Void> write = write(new byte[] { 1 });
+        Thread.sleep(100);
+        resp.abort(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        try {
+            write.get(1, TimeUnit.SECONDS);
+            Assert.fail("The write should have failed.");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, container.status);
+
+        // and the response is no longer touched
+        resp.setStatus(HttpServletResponse.SC_OK);
+        Assert.assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, container.status);
+    }
+}
@@ -0,0 +1,98 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutputCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("output-cache-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testKeyChangesWithCitation() {
+        Assert.assertEquals(OutputCache.key("uva-lib:1", "a", "b"), OutputCache.key("uva-lib:1", "a", "b"));
+        Assert.assertFalse(OutputCache.key("uva-lib:1", "a", "b").equals(OutputCache.key("uva-lib:1", "a", "c")));
+        Assert.assertFalse(OutputCache.key("uva-lib:1", "ab", "").equals(OutputCache.key("uva-lib:1", "a", "b")));
+        Assert.assertTrue(OutputCache.key("uva-lib:1", "a").startsWith("uva-lib_1-"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        OutputCache cache = new OutputCache(dir, 250);
+        cache.put("one", image(100));
+        cache.put("two", image(100));
+        Assert.assertNotNull(cache.get("one"));
+        cache.put("three", image(100));
+
+        Assert.assertNotNull("Recently used entry is kept.", cache.get("one"));
+        Assert.assertNull("Least recently used entry is evicted.", cache.get("two"));
+        Assert.assertNotNull(cache.get("three"));
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertFalse(new File(dir, "two.jpg").exists());
+    }
+
+    @Test
+    public void testUseKeepsRenderTime() throws Exception {
+        OutputCache cache = new OutputCache(dir, 1000);
+        cache.put("one", image(100));
+        final long rendered = (System.currentTimeMillis() / 1000 - 3600) * 1000;
+        new File(dir, "one.jpg").setLastModified(rendered);
+        Assert.assertEquals(rendered, cache.get("one").lastModified());
+        Assert.assertEquals(rendered, cache.get("one").lastModified());
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        new OutputCache(dir, 1000).put("one", image(100));
+        new File(dir, "abandoned-123.tmp").createNewFile();
+
+        OutputCache cache = new OutputCache(dir, 1000);
+        Assert.assertEquals(100, cache.get("one").length());
+        Assert.assertFalse("Partially written entries are cleaned up.", new File(dir, "abandoned-123.tmp").exists());
+    }
+
+    @Test
+    public void testStreamedEntryOnlyVisibleOnceCommitted() throws Exception {
+        OutputCache cache = new OutputCache(dir, 1000);
+        OutputCache.Writer writer = cache.begin("one");
+        writer.getOutputStream().write(new byte[100]);
+        Assert.assertNull(cache.get("one"));
+        writer.commit();
+        Assert.assertEquals(100, cache.get("one").length());
+
+        writer = cache.begin("two");
+        writer.getOutputStream().write(new byte[100]);
+        writer.abort();
+        Assert.assertNull(cache.get("two"));
+        Assert.assertEquals("Aborted entries leave nothing behind.", 1, dir.listFiles().length);
+    }
+
+    private File image(int size) throws Exception {
+        File f = File.createTempFile("output-cache-test-", ".jpg");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+}
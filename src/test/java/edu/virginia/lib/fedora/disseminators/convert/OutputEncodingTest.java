@@ -0,0 +1,51 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class OutputEncodingTest {
+
+    private static final OutputEncoding DEPLOYED = new OutputEncoding(OutputEncoding.Format.JPEG, 80, true, "4:2:0", true);
+
+    @Test
+    public void testOverrides() {
+        Assert.assertEquals(DEPLOYED, DEPLOYED.withOverrides(null, null, null));
+        final OutputEncoding overridden = DEPLOYED.withOverrides("60", "false", "4:4:4");
+        Assert.assertEquals(60, overridden.getQuality());
+        Assert.assertFalse(overridden.isProgressive());
+        Assert.assertEquals("4:4:4", overridden.getSampling());
+        Assert.assertTrue("Stripping is only set by the deployment.", overridden.isStripMetadata());
+        Assert.assertTrue(OutputEncoding.DEFAULT.withOverrides(null, "", null).isProgressive());
+    }
+
+    @Test
+    public void testMalformedOverrides() {
+        final String[][] overrides = { { "0", null, null }, { "101", null, null }, { "high", null, null }, { null, "yes", null }, { null, null, "4:1:1" } };
+        for (String[] override : overrides) {
+            try {
+                DEPLOYED.withOverrides(override[0], override[1], override[2]);
+                Assert.fail(override[0] + " " + override[1] + " " + override[2] + " should be rejected.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testVariantsAreDistinct() {
+        Assert.assertFalse(DEPLOYED.toString().equals(DEPLOYED.withOverrides("81", null, null).toString()));
+        Assert.assertFalse(DEPLOYED.toString().equals(DEPLOYED.withFormat(OutputEncoding.Format.WEBP).toString()));
+        Assert.assertEquals("JPEG-only settings don't split WebP variants.", DEPLOYED.withFormat(OutputEncoding.Format.WEBP), DEPLOYED.withOverrides(null, "false", "4:4:4").withFormat(OutputEncoding.Format.WEBP));
+    }
+
+    @Test
+    public void testAcceptsWebp() {
+        Assert.assertTrue(OutputEncoding.acceptsWebp("image/avif,image/webp,*/*"));
+        Assert.assertTrue(OutputEncoding.acceptsWebp("image/webp;q=0.8, image/jpeg"));
+        Assert.assertFalse(OutputEncoding.acceptsWebp("image/webp;q=0, image/jpeg"));
+        Assert.assertFalse("A wildcard alone doesn't mean WebP is understood.", OutputEncoding.acceptsWebp("image/*,*/*;q=0.8"));
+        Assert.assertFalse(OutputEncoding.acceptsWebp(null));
+    }
+
+}
@@ -0,0 +1,42 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class PrerenderJobTest {
+
+    @Test
+    public void testFinishesOnceEveryItemAndPageIsDone() {
+        final PrerenderJob job = new PrerenderJob("job1", Arrays.asList("meta1", "meta2"));
+        Assert.assertEquals("queued", job.getState());
+
+        job.itemExpanded(2);
+        job.pageRendered();
+        job.pageCached();
+        Assert.assertEquals("Waiting on the second item.", "running", job.getState());
+
+        job.itemExpanded(1);
+        Assert.assertEquals("running", job.getState());
+        job.pageFailed("page3", 404, "not found");
+        Assert.assertEquals("finished", job.getState());
+
+        final JSONObject json = job.toJson();
+        Assert.assertEquals(3, json.get("pages"));
+        Assert.assertEquals(1, json.get("rendered"));
+        Assert.assertEquals(1, json.get("alreadyCached"));
+        Assert.assertEquals(1, json.get("failed"));
+        Assert.assertEquals("[\"page3 404 not found\"]", json.get("failures").toString());
+    }
+
+    @Test
+    public void testFailedItemsFinishJob() {
+        final PrerenderJob job = new PrerenderJob("job1", Arrays.asList("meta1"));
+        job.itemFailed("meta1", 404, "not found");
+        Assert.assertTrue(job.isFinished());
+        Assert.assertEquals(1, job.toJson().get("failedItems"));
+    }
+}
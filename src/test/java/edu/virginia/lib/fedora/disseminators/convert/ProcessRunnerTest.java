@@ -0,0 +1,110 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ProcessRunnerTest {
+
+    private final ProcessRunner runner = new ProcessRunner(2);
+
+    @After
+    public void tearDown() {
+        runner.shutdown();
+    }
+
+    @Test
+    public void testCapturesExitCodeAndOutput() throws Exception {
+        ProcessRunner.Result result = runner.run("", Arrays.asList("sh", "-c", "echo out; echo err >&2; exit 3"));
+        Assert.assertEquals(3, result.getExitCode());
+        Assert.assertEquals("out\n", result.getStdout());
+        Assert.assertEquals("err\n", result.getStderr());
+        Assert.assertEquals(0, runner.getActiveProcesses());
+    }
+
+    @Test
+    public void testPipesLargeInputAndOutput() throws Exception {
+        // well beyond the capacity of a pipe, in every direction at once
+        final byte[] input = new byte[4 * 1024 * 1024];
+        for (int i = 0; i < input.length; i ++) {
+            input[i] = (byte) i;
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ProcessRunner.Result result = runner.run("", Arrays.asList("sh", "-c", "head -c 1000000 /dev/zero >&2; cat"), new ByteArrayInputStream(input), output);
+        Assert.assertEquals(0, result.getExitCode());
+        Assert.assertTrue(Arrays.equals(input, output.toByteArray()));
+        Assert.assertEquals(1000000, result.getStderr().length());
+    }
+
+    @Test
+    public void testInterruptKillsProcess() throws Exception {
+        final File pidFile = File.createTempFile("process-runner-test-", ".pid");
+        pidFile.deleteOnExit();
+        final ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            // the process closes its stdout, so the runner waits for it to exit
+            final Future<ProcessRunner.Result> result = callers.submit(new Callable<ProcessRunner.Result>() {
+                public ProcessRunner.Result call() throws Exception {
+                    return runner.run("", Arrays.asList("sh", "-c", "echo $$ > " + pidFile.getAbsolutePath() + "; exec sleep 60 > /dev/null"));
+                }
+            });
+            String pid = "";
+            for (int i = 0; i < 100 && pid.equals(""); i ++) {
+                Thread.sleep(50);
+                pid = new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.US_ASCII).trim();
+            }
+            Assert.assertFalse("The process started.", pid.equals(""));
+            Assert.assertTrue(isRunning(pid));
+            Assert.assertEquals(1, runner.getActiveProcesses());
+
+            result.cancel(true);
+            callers.shutdown();
+            Assert.assertTrue(callers.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertFalse("The process is killed.", isRunning(pid));
+            Assert.assertEquals(0, runner.getActiveProcesses());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private static boolean isRunning(String pid) throws Exception {
+        return new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+    }
+
+    @Test
+    public void testMoreProcessesThanThreads() throws Exception {
+        final ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Integer>> sizes = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 4; i ++) {
+                sizes.add(callers.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        runner.run("", Arrays.asList("sh", "-c", "sleep 0.2; cat"), new ByteArrayInputStream(new byte[100]), output);
+                        return output.size();
+                    }
+                }));
+            }
+            for (Future<Integer> size : sizes) {
+                Assert.assertEquals(100, size.get().intValue());
+            }
+        } finally {
+            callers.shutdown();
+        }
+    }
+}
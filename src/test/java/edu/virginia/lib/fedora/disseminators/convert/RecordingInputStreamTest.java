@@ -0,0 +1,65 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class RecordingInputStreamTest {
+
+    @Test
+    public void testReplayAfterHeaderScan() throws Exception {
+        final byte[] jpeg = jpeg(640, 480, 0);
+        final RecordingInputStream in = new RecordingInputStream(new ByteArrayInputStream(jpeg), 1024 * 1024);
+        try {
+            Assert.assertEquals("640x480", JpegDimensions.read(in).toString());
+            Assert.assertFalse(in.isSpooled());
+            Assert.assertTrue(Arrays.equals(jpeg, IOUtils.toByteArray(in.replay())));
+        } finally {
+            in.delete();
+        }
+    }
+
+    @Test
+    public void testReplayPastThreshold() throws Exception {
+        // the frame header follows a segment larger than is kept in memory
+        final byte[] jpeg = jpeg(300, 700, 60000);
+        final RecordingInputStream in = new RecordingInputStream(new ByteArrayInputStream(jpeg), 10000);
+        try {
+            Assert.assertEquals("300x700", JpegDimensions.read(in).toString());
+            Assert.assertTrue(in.isSpooled());
+            Assert.assertTrue(Arrays.equals(jpeg, IOUtils.toByteArray(in.replay())));
+        } finally {
+            in.delete();
+        }
+    }
+
+    /**
+     * Returns a JPEG with an APP15 segment of the given size (if any) right
+     * after the SOI marker.
+     */
+    private static byte[] jpeg(int width, int height, int paddingSize) throws Exception {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", baos);
+        final byte[] image = baos.toByteArray();
+        if (paddingSize == 0) {
+            return image;
+        }
+        final ByteArrayOutputStream padded = new ByteArrayOutputStream();
+        padded.write(image, 0, 2);
+        padded.write(0xFF);
+        padded.write(0xEF);
+        padded.write((paddingSize + 2) >> 8);
+        padded.write((paddingSize + 2) & 0xFF);
+        padded.write(new byte[paddingSize]);
+        padded.write(image, 2, image.length - 2);
+        return padded.toByteArray();
+    }
+}
@@ -0,0 +1,57 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RenderLimiterTest {
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        final RenderLimiter limiter = new RenderLimiter(1, 0, 10);
+        Assert.assertTrue(limiter.acquire());
+        Assert.assertFalse("No room to wait.", limiter.acquire());
+        Assert.assertEquals(1, limiter.getRejections());
+        limiter.release();
+        Assert.assertTrue(limiter.acquire());
+    }
+
+    @Test
+    public void testRejectsAfterMaxWait() throws Exception {
+        final RenderLimiter limiter = new RenderLimiter(1, 1, 1);
+        Assert.assertTrue(limiter.acquire());
+        final long start = System.currentTimeMillis();
+        Assert.assertFalse(limiter.acquire());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 1000);
+        Assert.assertEquals(1, limiter.getRejections());
+        Assert.assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void testReleaseAdmitsWaitingRequest() throws Exception {
+        final RenderLimiter limiter = new RenderLimiter(1, 1, 10);
+        Assert.assertTrue(limiter.acquire());
+        final ExecutorService waiter = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> admitted = waiter.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return limiter.acquire();
+                }
+            });
+            while (limiter.getQueued() == 0) {
+                Thread.sleep(10);
+            }
+            limiter.release();
+            Assert.assertTrue(admitted.get());
+            Assert.assertEquals(1, limiter.getInUse());
+            Assert.assertEquals(0, limiter.getQueued());
+        } finally {
+            waiter.shutdown();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ServerTimingTest {
+
+    @Test
+    public void testFormat() {
+        final ServerTiming timing = new ServerTiming();
+        Assert.assertTrue(timing.isEmpty());
+        final long now = System.nanoTime();
+        timing.add("iiif", now - 12300000);
+        timing.add("tracksys", now - 4000000);
+        timing.add("iiif", now - 1000000);
+        Assert.assertTrue(timing.toString(), timing.toString().matches("iiif;dur=13\\.\\d, tracksys;dur=4\\.\\d"));
+    }
+}
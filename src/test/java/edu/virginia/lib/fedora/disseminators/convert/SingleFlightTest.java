@@ -0,0 +1,104 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testFollowerGetsLeadersImage() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight(10, 1024);
+        final SingleFlight.Flight leader = singleFlight.join("page1-abc", "page1");
+        final SingleFlight.Flight follower = singleFlight.join("page1-abc", "page1");
+        Assert.assertTrue(leader.isLeader());
+        Assert.assertFalse(follower.isLeader());
+        Assert.assertTrue("A different citation is rendered separately.", singleFlight.join("page1-def", "page1").isLeader());
+
+        leader.getOutputStream().write(new byte[] { 1, 2, 3 });
+        leader.succeed();
+        leader.fail(500);
+
+        Assert.assertTrue(follower.await());
+        Assert.assertEquals(200, follower.getStatus());
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+        follower.writeImage(image);
+        Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, image.toByteArray()));
+        Assert.assertTrue("A finished render isn't joined.", singleFlight.join("page1-abc", "page1").isLeader());
+    }
+
+    @Test
+    public void testNothingIsKeptWithoutFollowers() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight(10, 1024);
+        final SingleFlight.Flight leader = singleFlight.join("page1-abc", "page1");
+        leader.getOutputStream().write(new byte[] { 1, 2, 3 });
+        Assert.assertEquals("Nothing is buffered for nobody.", 0, leader.getImageSize());
+
+        final SingleFlight.Flight late = singleFlight.join("page1-abc", "page1");
+        Assert.assertFalse(late.isLeader());
+        leader.getOutputStream().write(new byte[] { 4, 5, 6 });
+        Assert.assertEquals("Joining late doesn't start buffering.", 0, leader.getImageSize());
+        Assert.assertFalse("A late follower renders the image itself.", late.await());
+        Assert.assertFalse(late.isAbandoned());
+        leader.succeed();
+    }
+
+    @Test
+    public void testDefinitiveFailureIsPassedOn() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight(10, 1024);
+        final SingleFlight.Flight leader = singleFlight.join("page1-abc", "page1");
+        final SingleFlight.Flight follower = singleFlight.join("page1-abc", "page1");
+        leader.fail(404);
+
+        Assert.assertTrue(follower.await());
+        Assert.assertFalse(follower.isAbandoned());
+        Assert.assertEquals(404, follower.getStatus());
+    }
+
+    @Test
+    public void testOtherFailureReleasesFollowers() throws Exception {
+        // a client that went away after the response started, a status that
+        // is specific to one caller, a render limit rejection and an upstream
+        // or render error
+        for (int status : new int[] { 200, 403, 503, 500 }) {
+            final SingleFlight singleFlight = new SingleFlight(10, 1024);
+            final SingleFlight.Flight leader = singleFlight.join("page1-abc", "page1");
+            final SingleFlight.Flight follower = singleFlight.join("page1-abc", "page1");
+            final SingleFlight.Flight another = singleFlight.join("page1-abc", "page1");
+            leader.getOutputStream().write(new byte[] { 1, 2, 3 });
+            leader.fail(status);
+
+            Assert.assertFalse(status + " isn't passed on.", follower.await());
+            Assert.assertTrue(follower.isAbandoned());
+            Assert.assertFalse(another.await());
+            Assert.assertTrue("A follower takes over the render.", singleFlight.join("page1-abc", "page1").isLeader());
+            Assert.assertFalse("The others follow it.", singleFlight.join("page1-abc", "page1").isLeader());
+        }
+    }
+
+    @Test
+    public void testFollowerGivesUp() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight(1, 2);
+        final SingleFlight.Flight leader = singleFlight.join("page1-abc", "page1");
+        final SingleFlight.Flight follower = singleFlight.join("page1-abc", "page1");
+        Assert.assertFalse("Timed out.", follower.await());
+
+        leader.getOutputStream().write(new byte[] { 1, 2, 3 });
+        leader.succeed();
+        Assert.assertFalse("Too large to share.", follower.await());
+    }
+
+    @Test
+    public void testClaimPage() {
+        final SingleFlight singleFlight = new SingleFlight(10, 1024);
+        Assert.assertTrue(singleFlight.claimPage("page1"));
+        Assert.assertFalse(singleFlight.claimPage("page1"));
+        singleFlight.releasePage("page1");
+        singleFlight.join("page1-abc", "page1");
+        Assert.assertFalse("Page is being rendered.", singleFlight.claimPage("page1"));
+        Assert.assertTrue(singleFlight.claimPage("page2"));
+    }
+}
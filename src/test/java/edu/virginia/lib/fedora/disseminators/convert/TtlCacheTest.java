@@ -0,0 +1,100 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TtlCacheTest {
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        final TtlCache<String, String> cache = new TtlCache<String, String>("test", 10, 60, 60, 0, null, null);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final TtlCache.Loader<String> loader = new TtlCache.Loader<String>() {
+            public String load() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                finish.await();
+                return "value";
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<String> first = executor.submit(get(cache, loader));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            final Future<String> second = executor.submit(get(cache, loader));
+            final Future<String> third = executor.submit(get(cache, loader));
+            Thread.sleep(200);
+            finish.countDown();
+
+            Assert.assertEquals("value", first.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals("value", second.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals("value", third.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals("Only one request reaches the upstream service.", 1, loads.get());
+            Assert.assertEquals("value", cache.get("key", loader, ""));
+            Assert.assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedLoadIsShared() throws Exception {
+        final TtlCache<String, String> cache = new TtlCache<String, String>("test", 10, 60, 60, 0, null, null);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final TtlCache.Loader<String> failing = new TtlCache.Loader<String>() {
+            public String load() throws Exception {
+                started.countDown();
+                finish.await();
+                throw new IllegalStateException("503 from upstream");
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = executor.submit(get(cache, failing));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            final Future<String> second = executor.submit(get(cache, failing));
+            Thread.sleep(200);
+            finish.countDown();
+            for (Future<String> result : new Future[] { first, second }) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    Assert.fail("The failure should be passed on.");
+                } catch (ExecutionException ex) {
+                    Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+                }
+            }
+
+            Assert.assertEquals("A later request loads again.", "value", cache.get("key", new TtlCache.Loader<String>() {
+                public String load() {
+                    return "value";
+                }
+            }, ""));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<String> get(final TtlCache<String, String> cache, final TtlCache.Loader<String> loader) {
+        return new Callable<String>() {
+            public String call() throws Exception {
+                return cache.get("key", loader, "");
+            }
+        };
+    }
+
+}
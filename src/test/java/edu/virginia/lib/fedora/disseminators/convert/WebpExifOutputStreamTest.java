@@ -0,0 +1,132 @@
+package edu.virginia.lib.fedora.disseminators.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.commons.imaging.common.bytesource.ByteSourceArray;
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
+import org.apache.commons.imaging.formats.tiff.TiffImageParser;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.write.TiffImageWriterLossy;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+import org.junit.Test;
+
+public class WebpExifOutputStreamTest {
+
+    private static final String COMMENT = "Title of the item.  MSS 1234.\nCopyright and other legal restrictions may apply.";
+
+    /**
+     * The start of a lossless bitstream for a 300x200 image with alpha,
+     * followed by stand-in image data (which is never decoded).
+     */
+    private static final byte[] VP8L = { 0x2F, (byte) 0x2B, (byte) 0xC1, (byte) 0x31, (byte) 0x10, 1, 2, 3, 4, 5, 6 };
+
+    @Test
+    public void testSimpleFileIsExtended() throws Exception {
+        final byte[] tagged = addComment(riff(chunk("VP8L", VP8L)), 1);
+
+        final Map<String, byte[]> chunks = chunks(tagged);
+        Assert.assertEquals(Arrays.asList("VP8X", "VP8L", "EXIF"), Arrays.asList(chunks.keySet().toArray()));
+        final byte[] vp8x = chunks.get("VP8X");
+        Assert.assertEquals("The EXIF and alpha flags are set.", 0x18, vp8x[0]);
+        Assert.assertEquals(299, (vp8x[4] & 0xFF) | (vp8x[5] & 0xFF) << 8);
+        Assert.assertEquals(199, (vp8x[7] & 0xFF) | (vp8x[8] & 0xFF) << 8);
+        Assert.assertTrue("Image data is copied unchanged.", Arrays.equals(VP8L, chunks.get("VP8L")));
+        Assert.assertEquals(COMMENT, getComment(chunks.get("EXIF")));
+    }
+
+    @Test
+    public void testExistingExifIsReplaced() throws Exception {
+        final TiffOutputSet outputSet = new TiffOutputSet();
+        outputSet.getOrCreateRootDirectory().add(TiffTagConstants.TIFF_TAG_ARTIST, "Someone");
+        outputSet.getOrCreateExifDirectory().add(ExifTagConstants.EXIF_TAG_USER_COMMENT, "An old comment");
+        final ByteArrayOutputStream exif = new ByteArrayOutputStream();
+        new TiffImageWriterLossy(outputSet.byteOrder).write(exif, outputSet);
+        final byte[] vp8x = new byte[10];
+        vp8x[0] = 0x08 | 0x04;
+        final byte[] webp = riff(chunk("VP8X", vp8x), chunk("VP8L", VP8L), chunk("EXIF", exif.toByteArray()), chunk("XMP ", "<x/>".getBytes(StandardCharsets.UTF_8)));
+
+        final byte[] tagged = addComment(webp, 7);
+
+        final Map<String, byte[]> chunks = chunks(tagged);
+        Assert.assertEquals(Arrays.asList("VP8X", "VP8L", "EXIF", "XMP "), Arrays.asList(chunks.keySet().toArray()));
+        Assert.assertEquals("Other flags are kept.", 0x0C, chunks.get("VP8X")[0]);
+        Assert.assertEquals("Existing comment is replaced.", COMMENT, getComment(chunks.get("EXIF")));
+        final TiffImageMetadata metadata = (TiffImageMetadata) new TiffImageParser().getMetadata(new ByteSourceArray(chunks.get("EXIF")), null);
+        Assert.assertEquals("Other tags are kept.", "Someone", metadata.findField(TiffTagConstants.TIFF_TAG_ARTIST).getStringValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsTruncatedImage() throws Exception {
+        final WebpExifOutputStream out = new WebpExifOutputStream(new ByteArrayOutputStream(), COMMENT);
+        out.write(riff(chunk("VP8L", VP8L)), 0, 10);
+        out.finish();
+    }
+
+    private static byte[] chunk(String fourcc, byte[] payload) throws IOException {
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        chunk.write(fourcc.getBytes(StandardCharsets.US_ASCII));
+        chunk.write(littleEndian(payload.length));
+        chunk.write(payload);
+        if (payload.length % 2 == 1) {
+            chunk.write(0);
+        }
+        return chunk.toByteArray();
+    }
+
+    private static byte[] riff(byte[] ... chunks) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("WEBP".getBytes(StandardCharsets.US_ASCII));
+        for (byte[] chunk : chunks) {
+            body.write(chunk);
+        }
+        final ByteArrayOutputStream riff = new ByteArrayOutputStream();
+        riff.write("RIFF".getBytes(StandardCharsets.US_ASCII));
+        riff.write(littleEndian(body.size()));
+        body.writeTo(riff);
+        return riff.toByteArray();
+    }
+
+    private static byte[] littleEndian(int value) {
+        return new byte[] { (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24) };
+    }
+
+    /**
+     * Checks the RIFF structure, returning the payload of each chunk.
+     */
+    private static Map<String, byte[]> chunks(byte[] webp) {
+        Assert.assertEquals("RIFF", new String(webp, 0, 4, StandardCharsets.US_ASCII));
+        Assert.assertEquals("The RIFF length is updated.", webp.length - 8, (webp[4] & 0xFF) | (webp[5] & 0xFF) << 8 | (webp[6] & 0xFF) << 16 | (webp[7] & 0xFF) << 24);
+        final Map<String, byte[]> chunks = new LinkedHashMap<String, byte[]>();
+        int offset = 12;
+        while (offset < webp.length) {
+            final int size = (webp[offset + 4] & 0xFF) | (webp[offset + 5] & 0xFF) << 8 | (webp[offset + 6] & 0xFF) << 16 | (webp[offset + 7] & 0xFF) << 24;
+            chunks.put(new String(webp, offset, 4, StandardCharsets.US_ASCII), Arrays.copyOfRange(webp, offset + 8, offset + 8 + size));
+            offset += 8 + size + (size & 1);
+        }
+        Assert.assertEquals(webp.length, offset);
+        return chunks;
+    }
+
+    private byte[] addComment(byte[] webp, int chunkSize) throws Exception {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final WebpExifOutputStream out = new WebpExifOutputStream(result, COMMENT);
+        for (int i = 0; i < webp.length; i += chunkSize) {
+            out.write(webp, i, Math.min(chunkSize, webp.length - i));
+        }
+        out.close();
+        return result.toByteArray();
+    }
+
+    private String getComment(byte[] exif) throws Exception {
+        final TiffImageMetadata metadata = (TiffImageMetadata) new TiffImageParser().getMetadata(new ByteSourceArray(exif), null);
+        return (String) metadata.findField(ExifTagConstants.EXIF_TAG_USER_COMMENT).getValue();
+    }
+}